@@ -0,0 +1,87 @@
+package com.messengerBenchmarks;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.Frames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes one text message in the frame format the applications speak, against
+ * {@code DataOutputStream.writeUTF} and {@code DataInputStream.readUTF}, which the first versions
+ * of the protocol used. The text mixes ASCII with a few two-byte characters, as chat does. Run
+ * with {@code -prof gc} to see the bytes each allocates per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"16", "256", "4096"})
+    private int length;
+
+    private String text;
+    private final ByteArrayOutputStream utfBytes = new ByteArrayOutputStream();
+    private final DataOutputStream utfOut = new DataOutputStream(utfBytes);
+    private ByteArrayInputStream utfIn;
+    private DataInputStream utfData;
+    private ByteBuffer frame;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private FrameDecoder.Handler handler;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; builder.length() < length; i++) {
+            builder.append(i % 32 == 31 ? '\u017C' : (char) ('a' + i % 26));
+        }
+        text = builder.toString();
+        utfOut.writeUTF(text);
+        utfIn = new ByteArrayInputStream(utfBytes.toByteArray());
+        utfData = new DataInputStream(utfIn);
+        frame = Frames.message(text);
+        handler = (type, flags, streamId, payload) -> blackhole.consume(Frames.readText(payload));
+    }
+
+    @Benchmark
+    public byte[] writeUtf() throws IOException {
+        utfBytes.reset();
+        utfOut.writeUTF(text);
+        return utfBytes.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        return Frames.message(text);
+    }
+
+    @Benchmark
+    public String readUtf() throws IOException {
+        utfIn.reset();
+        return utfData.readUTF();
+    }
+
+    @Benchmark
+    public int decodeFrame() throws IOException {
+        return decoder.decode(frame.duplicate(), handler);
+    }
+}
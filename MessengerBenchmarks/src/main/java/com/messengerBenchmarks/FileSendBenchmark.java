@@ -0,0 +1,73 @@
+package com.messengerBenchmarks;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs the two send paths of {@link FileTransferBenchmark} outside JMH, for what its profilers do
+ * not report portably: the CPU time of the sending thread, beside its throughput, the heap it
+ * allocated and the collections that ran. The file, the connection and the sink are those of the
+ * JMH benchmark.
+ * <p>
+ * Usage: {@code FileSendBenchmark [file size in MiB, default 512] [measured rounds, default 5]}; the
+ * file has to be smaller than 2 GiB.
+ */
+public final class FileSendBenchmark {
+    private static final int WARMUP_ROUNDS = 2;
+
+    private interface SendPath {
+        /**
+         * @return the bytes of file content sent.
+         */
+        long send() throws IOException;
+    }
+
+    private FileSendBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMiB = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        FileTransferBenchmark benchmark = new FileTransferBenchmark(Math.multiplyExact(sizeMiB, 1024 * 1024));
+        benchmark.setUp();
+        try {
+            System.out.printf("%d MiB file, %d rounds after %d warm-up rounds%n", sizeMiB, rounds, WARMUP_ROUNDS);
+            run("heap copy", benchmark::heapCopy, rounds);
+            run("transferTo", benchmark::transferTo, rounds);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static void run(String name, SendPath path, int rounds) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            path.send();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long bytes = 0;
+        long startCpu = threads.getCurrentThreadCpuTime();
+        long startAllocated = threads.getThreadAllocatedBytes(threadId);
+        long startCollections = collectionCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bytes += path.send();
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = threads.getCurrentThreadCpuTime() - startCpu;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startAllocated;
+        long collections = collectionCount() - startCollections;
+        System.out.printf("%-10s %9.1f MiB/s   sender cpu %7.1f ms/round   allocated %9.1f KiB/round   gc %d%n",
+                name, bytes / (1024.0 * 1024.0) / (elapsed / 1e9), cpu / 1e6 / rounds,
+                allocated / 1024.0 / rounds, collections);
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,123 @@
+package com.messengerBenchmarks;
+
+import com.messengerCommon.file.FileTransfer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The file send path at 4 KB, 1 MB and 100 MB, over one loopback connection that a sink thread
+ * drains as fast as it can: {@code heapCopy} copies every chunk through a heap buffer into the
+ * socket's stream, {@code transferTo} has {@link FileTransfer#writeFrameTo} send it straight from
+ * the file. Each operation sends the whole file once, opening it as a transfer does. A small file
+ * only has to reach the socket's buffer, so it measures the cost per file more than the
+ * throughput. Run with {@code -prof gc} for the bytes allocated per file; {@link FileSendBenchmark}
+ * runs the same two methods outside JMH to measure the CPU time of the sending thread as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+    private static final int SINK_BUFFER_SIZE = 256 * 1024;
+
+    @Param({"4096", "1048576", "104857600"})
+    private int size;
+
+    private Path file;
+    private ServerSocketChannel listener;
+    private SocketChannel channel;
+    private OutputStream stream;
+    private Thread sink;
+
+    public FileTransferBenchmark() {
+    }
+
+    /**
+     * For {@link FileSendBenchmark}, which sets the size JMH would otherwise inject.
+     */
+    FileTransferBenchmark(int size) {
+        this.size = size;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("messenger-bench", ".bin");
+        byte[] block = new byte[Math.min(size, 1024 * 1024)];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < size; written += block.length) {
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel accepted = listener.accept();
+        sink = Thread.ofPlatform().name("benchmark-sink").start(() -> drain(accepted));
+        stream = Channels.newOutputStream(channel);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        channel.close();
+        sink.join();
+        listener.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long heapCopy() throws IOException {
+        try (FileTransfer transfer = new FileTransfer(1, "benchmark.bin", file)) {
+            ByteBuffer frame;
+            while ((frame = transfer.nextFrame()) != null) {
+                stream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            }
+            return transfer.getBytesSent();
+        }
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileTransfer transfer = new FileTransfer(1, "benchmark.bin", file)) {
+            while (!transfer.isDone()) {
+                transfer.writeFrameTo(channel);
+            }
+            return transfer.getBytesSent();
+        }
+    }
+
+    private static void drain(SocketChannel accepted) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SINK_BUFFER_SIZE);
+        try (accepted) {
+            while (accepted.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // the benchmark closed the connection
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.messengerBenchmarks;
+
+import com.messengerCommon.codec.FrameCodec;
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.transport.NetworkService;
+import com.messengerCommon.transport.SocketSettings;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a running server under load: opens a number of connections, each speaking the client
+ * protocol through a {@link NetworkService}, and has them send messages at a fixed total rate,
+ * and optionally a file now and then. Every second it prints the rates and latencies of that
+ * second, and at the end those of the whole measurement, leaving out the warm-up.
+ * <p>
+ * Two latencies are recorded, both from the moment a message was due to be sent rather than when
+ * it actually went out, so a stalled server shows up as latency instead of as fewer samples:
+ * <ul>
+ *     <li>acknowledged: until the sender has the server's {@link FrameType#ACK}, which is sent once
+ *     the message is in the message log;</li>
+ *     <li>delivered: until another connection has received the message from the server, recorded
+ *     on every connection it reaches, so a message to a room of {@code n} counts {@code n - 1}
+ *     times.</li>
+ * </ul>
+ * Send times travel in the message text and are only compared with this process's own clock, so
+ * messages from anyone else are ignored and the server may run anywhere.
+ * <p>
+ * Usage: {@code LoadGenerator [--host=localhost] [--port=1234] [--connections=50] [--rate=5000]
+ * [--size=64] [--duration=30] [--warmup=5] [--file=PATH --file-rate=FILES_PER_SECOND]}, with the
+ * rate in messages per second across all connections, the size of each message in characters and
+ * durations in seconds. Many connections need a raised limit of open files ({@code ulimit -n}).
+ */
+public final class LoadGenerator {
+    /** Messages a connection may have unacknowledged before it waits for the server. */
+    private static final int MAX_UNACKNOWLEDGED = 1 << 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Set<String> OPTIONS = Set.of("host", "port", "connections", "rate", "size", "duration",
+            "warmup", "file", "file-rate");
+
+    private final String runId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Recorder acknowledgedLatency = new Recorder(3);
+    private final Recorder deliveredLatency = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder fileBytesReceived = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final List<Connection> connections = new ArrayList<>();
+    private final String padding;
+    private volatile boolean stopping;
+
+    private LoadGenerator(int size) {
+        this.padding = "x".repeat(size);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "1234"));
+        int connectionCount = Integer.parseInt(options.getOrDefault("connections", "50"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "5000"));
+        int size = Integer.parseInt(options.getOrDefault("size", "64"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        Path file = options.containsKey("file") ? Path.of(options.get("file")) : null;
+        double fileRate = Double.parseDouble(options.getOrDefault("file-rate", file == null ? "0" : "1"));
+
+        LoadGenerator generator = new LoadGenerator(size);
+        generator.connect(new InetSocketAddress(host, port), connectionCount);
+        System.out.printf("%d connections to %s:%d, %.0f msg/s of %d characters, %d s after %d s of warm-up%n",
+                connectionCount, host, port, rate, size, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        generator.run(rate, file, fileRate, warmupNanos, durationNanos);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String argument : args) {
+            int equals = argument.indexOf('=');
+            if (!argument.startsWith("--") || equals < 0 || !OPTIONS.contains(argument.substring(2, equals))) {
+                throw new IllegalArgumentException("Unknown option " + argument + ", expected one of " + OPTIONS);
+            }
+            options.put(argument.substring(2, equals), argument.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private void connect(InetSocketAddress server, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open();
+            SocketSettings.DEFAULT.applyTo(channel);
+            channel.connect(server);
+            Connection connection = new Connection(channel);
+            connection.service.sendHello(0, "load-" + runId + "-" + i);
+            connections.add(connection);
+            Thread.ofVirtual().name("load-reader-" + i).start(connection::read);
+        }
+    }
+
+    private void run(double rate, Path file, double fileRate, long warmupNanos, long durationNanos) {
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        long interval = (long) (connections.size() * 1e9 / rate);
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get(i);
+            long first = start + interval * i / connections.size();
+            senders.add(Thread.ofVirtual().name("load-sender-" + i)
+                    .start(() -> connection.sendMessages(first, interval, end)));
+        }
+        if (file != null && fileRate > 0) {
+            senders.add(Thread.ofVirtual().name("load-files")
+                    .start(() -> sendFiles(file, start, (long) (1e9 / fileRate), end)));
+        }
+
+        Histogram acknowledgedTotal = new Histogram(3);
+        Histogram deliveredTotal = new Histogram(3);
+        long[] totalsAtStart = null;
+        long drainUntil = end + DRAIN_NANOS;
+        long[] previous = counts();
+        for (long next = start + REPORT_INTERVAL_NANOS; ; next += REPORT_INTERVAL_NANOS) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            long[] current = counts();
+            Histogram acknowledgedInterval = acknowledgedLatency.getIntervalHistogram();
+            Histogram deliveredInterval = deliveredLatency.getIntervalHistogram();
+            boolean measuring = next > measureFrom;
+            if (measuring) {
+                if (totalsAtStart == null) {
+                    totalsAtStart = previous;
+                }
+                acknowledgedTotal.add(acknowledgedInterval);
+                deliveredTotal.add(deliveredInterval);
+            }
+            System.out.printf("%4d s %s  sent %8d/s  acked %8d/s  delivered %9d/s  ack p50 %s p99 %s  delivery p50 %s p99 %s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(next - start), measuring ? "   " : "(w)",
+                    current[0] - previous[0], current[1] - previous[1], current[2] - previous[2],
+                    micros(acknowledgedInterval, 50), micros(acknowledgedInterval, 99),
+                    micros(deliveredInterval, 50), micros(deliveredInterval, 99));
+            // after the last send, waits for acknowledgements for as long as they keep coming
+            boolean drained = current[1] == current[0] || current[1] == previous[1];
+            previous = current;
+            if (next >= end && (drained || next >= drainUntil)) {
+                break;
+            }
+        }
+        stopping = true;
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+        connections.forEach(Connection::close);
+
+        double seconds = durationNanos / 1e9;
+        long[] totals = previous;
+        if (totalsAtStart == null) {
+            totalsAtStart = new long[totals.length];
+        }
+        System.out.printf("%nOver the %.0f s measured, with what arrived after it:%n", seconds);
+        System.out.printf("sent         %10d messages %10.0f/s%n", totals[0] - totalsAtStart[0],
+                (totals[0] - totalsAtStart[0]) / seconds);
+        System.out.printf("acknowledged %10d messages %10.0f/s   %s%n", totals[1] - totalsAtStart[1],
+                (totals[1] - totalsAtStart[1]) / seconds, percentiles(acknowledgedTotal));
+        System.out.printf("delivered    %10d messages %10.0f/s   %s%n", totals[2] - totalsAtStart[2],
+                (totals[2] - totalsAtStart[2]) / seconds, percentiles(deliveredTotal));
+        if (file != null) {
+            System.out.printf("files        %10d sent, %d received, %.1f MiB/s received%n",
+                    totals[3] - totalsAtStart[3], totals[4] - totalsAtStart[4],
+                    (totals[5] - totalsAtStart[5]) / (1024.0 * 1024.0) / seconds);
+        }
+        System.out.printf("disconnects  %10d%n", disconnects.sum());
+    }
+
+    /**
+     * Sends a file every {@code interval} from one connection after the other, falling behind
+     * rather than overlapping when a file takes longer than that.
+     */
+    private void sendFiles(Path file, long first, long interval, long end) {
+        int next = 0;
+        for (long due = first; due < end && !stopping; due += interval) {
+            LockSupport.parkNanos(due - System.nanoTime());
+            Connection connection = connections.get(next++ % connections.size());
+            try {
+                connection.service.sendFile(file);
+                filesSent.increment();
+            } catch (IOException e) {
+                if (!stopping) {
+                    System.err.println("Could not send " + file + ": " + e);
+                }
+            }
+        }
+    }
+
+    private long[] counts() {
+        return new long[]{sent.sum(), acknowledged.sum(), delivered.sum(), filesSent.sum(), filesReceived.sum(),
+                fileBytesReceived.sum()};
+    }
+
+    private static String micros(Histogram histogram, double percentile) {
+        if (histogram.getTotalCount() == 0) {
+            return String.format("%8s", "-");
+        }
+        return String.format("%6dus", TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(percentile)));
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return "p50 " + micros(histogram, 50) + "  p99 " + micros(histogram, 99) + "  p99.9 "
+                + micros(histogram, 99.9) + "  max " + micros(histogram, 100);
+    }
+
+    private final class Connection implements FrameDecoder.Handler {
+        private final SocketChannel channel;
+        private final NetworkService service;
+        /** When each unacknowledged message was due, by sequence number. */
+        private final AtomicLongArray dueTimes = new AtomicLongArray(MAX_UNACKNOWLEDGED);
+        private volatile long acknowledgedThrough;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.service = new NetworkService(
+                    new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_SIZE),
+                    new BufferedInputStream(channel.socket().getInputStream(), BUFFER_SIZE), channel);
+        }
+
+        /**
+         * Sends a message every {@code interval}, numbered from 1 for the server to acknowledge.
+         * A message that is late still counts from when it was due.
+         */
+        void sendMessages(long first, long interval, long end) {
+            long sequence = 0;
+            try {
+                for (long due = first; due < end && !stopping; due += interval) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                    sequence++;
+                    while (sequence - acknowledgedThrough > MAX_UNACKNOWLEDGED && !stopping) {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    }
+                    dueTimes.set((int) (sequence % MAX_UNACKNOWLEDGED), due);
+                    service.sendMessage(sequence, runId + " " + due + " " + padding);
+                    sent.increment();
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    System.err.println("Could not send a message: " + e);
+                }
+            }
+        }
+
+        void read() {
+            try {
+                while (service.readFrame(this)) {
+                    // each frame is handled by onFrame
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    System.err.println("Connection failed: " + e);
+                }
+            }
+            if (!stopping) {
+                disconnects.increment();
+            }
+        }
+
+        @Override
+        public void onFrame(FrameType type, int flags, long streamId, ByteBuffer payload) throws IOException {
+            long now = System.nanoTime();
+            switch (type) {
+                case MESSAGE -> {
+                    if ((flags & FrameCodec.FLAG_SEQUENCED) != 0) {
+                        Frames.readSequence(payload);
+                    }
+                    long due = dueTime(Frames.readText(payload));
+                    if (due >= 0) {
+                        deliveredLatency.recordValue(Math.max(0, now - due));
+                        delivered.increment();
+                    }
+                }
+                case ACK -> {
+                    long through = Frames.readSequence(payload);
+                    long count = 0;
+                    for (long sequence = acknowledgedThrough + 1; sequence <= through; sequence++, count++) {
+                        long due = dueTimes.get((int) (sequence % MAX_UNACKNOWLEDGED));
+                        acknowledgedLatency.recordValue(Math.max(0, now - due));
+                    }
+                    if (through > acknowledgedThrough) {
+                        acknowledgedThrough = through;
+                    }
+                    acknowledged.add(count);
+                }
+                case PING -> service.sendPong();
+                case FILE_RESUME -> service.resumeFile(streamId, Frames.readRanges(payload));
+                case FILE_CHUNK -> fileBytesReceived.add(payload.remaining() - Frames.CHUNK_OFFSET_LENGTH);
+                case FILE_END -> filesReceived.increment();
+                default -> {
+                }
+            }
+        }
+
+        /**
+         * @return when a message of this run was due, or -1 for a message from anyone else.
+         */
+        private long dueTime(String text) {
+            int runEnd = text.indexOf(' ');
+            int dueEnd = runEnd < 0 ? -1 : text.indexOf(' ', runEnd + 1);
+            if (dueEnd < 0 || !text.startsWith(runId) || runEnd != runId.length()) {
+                return -1;
+            }
+            return Long.parseLong(text, runEnd + 1, dueEnd, 10);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the run is over
+            }
+        }
+    }
+}
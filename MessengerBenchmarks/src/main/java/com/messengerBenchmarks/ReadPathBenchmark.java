@@ -0,0 +1,162 @@
+package com.messengerBenchmarks;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.DiskWriter;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.transport.MessageDispatcher;
+import com.messengerCommon.transport.NetworkService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the server spends on each message it reads, from bytes already received to the text in
+ * the listener's hands, for a burst of {@value #MESSAGES} numbered messages:
+ * <ul>
+ *     <li>{@code readUtf}: the loop the first server ran per client, {@code readUTF} after
+ *     {@code readUTF};</li>
+ *     <li>{@code networkService}: the thread-per-connection sessions, frames read from a stream by
+ *     {@link NetworkService} and dispatched by {@link MessageDispatcher};</li>
+ *     <li>{@code frameDecoder}: the selector sessions, frames decoded in place from a buffer by
+ *     {@link FrameDecoder} and dispatched the same way.</li>
+ * </ul>
+ * Scores are per message; run with {@code -prof gc} for the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadPathBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"16", "256"})
+    private int length;
+
+    private ByteArrayInputStream utfIn;
+    private DataInputStream utfData;
+    private ByteArrayInputStream frameIn;
+    private NetworkService networkService;
+    private ByteBuffer frames;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private DiskWriter diskWriter;
+    private Path downloadDirectory;
+    private MessageDispatcher dispatcher;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        String text = "m".repeat(length);
+        ByteArrayOutputStream utfBytes = new ByteArrayOutputStream();
+        DataOutputStream utfOut = new DataOutputStream(utfBytes);
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+        for (int i = 1; i <= MESSAGES; i++) {
+            utfOut.writeUTF(text);
+            ByteBuffer frame = Frames.message(i, text);
+            frameBytes.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        utfIn = new ByteArrayInputStream(utfBytes.toByteArray());
+        utfData = new DataInputStream(utfIn);
+        frameIn = new ByteArrayInputStream(frameBytes.toByteArray());
+        networkService = new NetworkService(OutputStream.nullOutputStream(), frameIn);
+        frames = ByteBuffer.wrap(frameBytes.toByteArray());
+
+        diskWriter = new DiskWriter("benchmark-disk-writer");
+        downloadDirectory = Files.createTempDirectory("messenger-bench");
+        dispatcher = new MessageDispatcher(new ConsumingListener(blackhole),
+                new FileReceiver(downloadDirectory, diskWriter, FileWriteMode.CHANNEL, true));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dispatcher.close();
+        diskWriter.close();
+        Files.deleteIfExists(downloadDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readUtf(Blackhole blackhole) throws IOException {
+        utfIn.reset();
+        for (int i = 0; i < MESSAGES; i++) {
+            blackhole.consume(utfData.readUTF());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void networkService() throws IOException {
+        frameIn.reset();
+        for (int i = 0; i < MESSAGES; i++) {
+            networkService.readFrame(dispatcher);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int frameDecoder() throws IOException {
+        return decoder.decode(frames.duplicate(), dispatcher);
+    }
+
+    private static final class ConsumingListener implements MessageDispatcher.Listener {
+        private final Blackhole blackhole;
+
+        ConsumingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onMessage(long sequence, String message) {
+            blackhole.consume(sequence);
+            blackhole.consume(message);
+        }
+
+        @Override
+        public void onFile(String fileName, Path file) {
+        }
+
+        @Override
+        public void onPing() {
+        }
+
+        @Override
+        public void requestFileRanges(long streamId, long[] missingRanges) {
+        }
+
+        @Override
+        public void onFileRangesRequested(long streamId, long[] missingRanges) {
+        }
+
+        @Override
+        public void onHello(long resumeFrom, String clientId) {
+        }
+
+        @Override
+        public void onAcknowledged(long sequence) {
+        }
+    }
+}
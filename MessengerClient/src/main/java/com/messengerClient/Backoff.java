@@ -0,0 +1,34 @@
+package com.messengerClient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between reconnect attempts: the ceiling doubles after every failed attempt, from an
+ * initial delay up to a maximum, and each delay is drawn at random between the initial delay and
+ * the current ceiling. The randomness keeps clients that lost the server at the same moment from
+ * all coming back at the same moment too. Not thread safe.
+ */
+class Backoff {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private long ceilingMillis;
+
+    Backoff(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.ceilingMillis = initialDelayMillis;
+    }
+
+    long nextDelayMillis() {
+        long delay = ThreadLocalRandom.current().nextLong(initialDelayMillis, ceilingMillis + 1);
+        ceilingMillis = Math.min(maxDelayMillis, ceilingMillis * 2);
+        return delay;
+    }
+
+    /**
+     * Starts again from the initial delay, after a connection that lasted.
+     */
+    void reset() {
+        ceilingMillis = initialDelayMillis;
+    }
+}
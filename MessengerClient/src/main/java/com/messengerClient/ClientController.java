@@ -1,27 +1,32 @@
 package com.messengerClient;
 
+import com.messengerCommon.metrics.MetricsRegistry;
+import com.messengerCommon.ui.ChatMessage;
+import com.messengerCommon.ui.MessageDisplayService;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
-import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
-import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * The ClientController class is responsible for handling the client-side functionality
- * of the messenger application. It initializes the connection to the server,
- * handles sending and receiving messages, and manages file transfer operations.
+ * of the messenger application. It starts the {@link ServerConnection}, which keeps the client
+ * connected to the server, and handles sending and receiving messages and files through it.
+ * Sending only queues work for the connection's own threads, so the FX thread never waits for
+ * the network or the disk.
  */
-public class ClientController implements Initializable {
+public class ClientController implements Initializable, ServerConnection.Listener {
 
     private static final int SERVER_PORT = 1234;
     private static final String SERVER_ADDRESS = "localhost";
@@ -33,36 +38,18 @@ public class ClientController implements Initializable {
     @FXML
     private TextField tf_message;
     @FXML
-    private VBox vbox_messages;
-    @FXML
-    private ScrollPane sp_main;
-    private Socket socket;
-    private DataOutputStream outputStream;
-    private DataInputStream inputStream;
+    private ListView<ChatMessage> lv_messages;
     private MessageDisplayService messageDisplayService;
-    private NetworkService networkService;
+    private ServerConnection serverConnection;
     private static final Logger logger = Logger.getLogger(ClientController.class.getName());
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        connectToServer();
-        messageDisplayService = new MessageDisplayService(vbox_messages);
-        vbox_messages.heightProperty().addListener((observableValue, number, t1) -> sp_main.setVvalue((Double) t1));
+        messageDisplayService = new MessageDisplayService(lv_messages);
         button_send.setOnAction(this::handleSendMessage);
         button_send_file.setOnAction(this::handleSendFile);
-        receiveMessageFromServer(vbox_messages);
-    }
-
-    private void connectToServer() {
-        try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            outputStream = new DataOutputStream(socket.getOutputStream());
-            inputStream = new DataInputStream(socket.getInputStream());
-            networkService = new NetworkService(outputStream, inputStream);
-            System.out.println("Connected with server: " + SERVER_ADDRESS + ":" + SERVER_PORT);
-        } catch (IOException e) {
-            handleServerError("Error creating server", e);
-        }
+        serverConnection = new ServerConnection(SERVER_ADDRESS, SERVER_PORT, Path.of(""), this);
+        serverConnection.start();
     }
 
     private void handleSendMessage(ActionEvent actionEvent) {
@@ -74,7 +61,13 @@ public class ClientController implements Initializable {
 
     private void processAndSendMessage(String message) {
         messageDisplayService.addMessageToDisplay(message, true);
-        sendMessageToClient(message);
+        serverConnection.sendMessage(message).whenComplete((acknowledged, error) -> {
+            if (error != null) {
+                logger.log(Level.SEVERE, "Error sending message to the server", error);
+                Platform.runLater(() -> new Alert(Alert.AlertType.ERROR,
+                        "The message was not sent: " + error.getMessage()).show());
+            }
+        });
         tf_message.clear();
     }
 
@@ -91,78 +84,40 @@ public class ClientController implements Initializable {
         return fileChooser.showOpenDialog(null);
     }
 
-    private void sendMessageToClient(String messageToSend) {
-        try {
-            networkService.sendMessage(messageToSend);
-            tf_message.clear();
-        } catch (IOException e) {
-            handleServerError("Error sending message to the client", e);
-        }
-    }
-
     private void sendFileToClient(File fileToSend) {
-        try {
-            byte[] fileNameBytes = fileToSend.getName().getBytes();
-            byte[] fileContentBytes = Files.readAllBytes(fileToSend.toPath());
-
-            sendMessageToClient("FILE:");
-            networkService.sendFileMetadata(fileNameBytes, fileContentBytes);
-            networkService.sendFileContent(fileContentBytes);
-
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(fileToSend.getName(), true));
-        } catch (IOException e) {
-            handleServerError("Error sending file to the client", e);
-        }
-    }
-
-    private void receiveMessageFromServer(VBox vBox) {
-        new Thread(() -> {
-            try {
-                while (socket.isConnected()) {
-                    String messageFromClient = inputStream.readUTF();
-                    processReceivedMessage(messageFromClient, vBox);
-                }
-            } catch (SocketException e) {
-                logger.log(Level.SEVERE, "Problem z gniazdem", e);
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Błąd we/wy", e);
+        serverConnection.sendFile(fileToSend.toPath()).whenComplete((sent, error) -> {
+            if (error != null) {
+                logger.log(Level.SEVERE, "Error sending file to the server", error);
+            } else {
+                messageDisplayService.addMessageToDisplay(fileToSend.getName(), true);
             }
-        }).start();
+        });
     }
 
-    private void processReceivedMessage(String message, VBox vBox) throws IOException {
-        if (message.equals("FILE:")) {
-            receiveAndSaveFile();
-        } else {
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(message, false));
-        }
+    @Override
+    public void onMessage(String message) {
+        messageDisplayService.addMessageToDisplay(message, false);
     }
 
-    private void receiveAndSaveFile() {
-        try {
-            String fileName = networkService.readFileNameFromClient();
-            byte[] fileContent = networkService.readFileContentFromClient();
-            saveFile(fileName, fileContent);
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(fileName, false));
-        } catch (IOException e) {
-            handleServerError("Error receiving and saving file from client", e);
-        }
+    @Override
+    public void onFile(String fileName, Path file) {
+        messageDisplayService.addMessageToDisplay(fileName, false);
     }
 
-    private void saveFile(String fileName, byte[] fileContent) throws IOException {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(fileName)) {
-            fileOutputStream.write(fileContent);
-        }
+    public MetricsRegistry getMetrics() {
+        return serverConnection.getMetrics();
     }
 
-    private void handleServerError(String errorMessage, Exception exception) {
-        System.out.println(errorMessage);
-        logger.log(Level.SEVERE, errorMessage, exception);
-        networkService.closeEverything(socket, outputStream, inputStream);
+    /**
+     * Disconnects from the server for good.
+     */
+    public void close() {
+        if (serverConnection != null) {
+            serverConnection.close();
+        }
     }
 }
 
-
 //import javafx.application.Platform;
 //import javafx.fxml.FXML;
 //import javafx.fxml.Initializable;
@@ -1,5 +1,6 @@
 package com.messengerClient;
 
+import com.messengerCommon.metrics.MetricsPublisher;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -9,6 +10,8 @@ import java.io.IOException;
 
 /**
  * The main class for the server application which launches the JavaFX application.
+ * The client's metrics are published over JMX while it runs, and with
+ * {@code --metrics-port=PORT} over HTTP as well, at {@code http://127.0.0.1:PORT/metrics}.
  */
 public class Main extends Application {
 
@@ -22,6 +25,14 @@ public class Main extends Application {
     public void start(Stage stage) throws IOException {
         FXMLLoader fxmlLoader = new FXMLLoader(Main.class.getResource("MainView.fxml"));
         Scene scene = new Scene(fxmlLoader.load(), 480, 400);
+        ClientController controller = fxmlLoader.getController();
+        String metricsPort = getParameters().getNamed().get("metrics-port");
+        MetricsPublisher metricsPublisher = MetricsPublisher.start(controller.getMetrics(), "Client",
+                metricsPort == null ? MetricsPublisher.NO_HTTP : Integer.parseInt(metricsPort.trim()));
+        stage.setOnHidden(event -> {
+            metricsPublisher.close();
+            controller.close();
+        });
         stage.setTitle("Client");
         stage.setScene(scene);
         stage.show();
@@ -31,6 +42,6 @@ public class Main extends Application {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        launch();
+        launch(args);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,539 @@
+package com.messengerClient;
+
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.DiskWriter;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.metrics.LatencyHistogram;
+import com.messengerCommon.metrics.MetricsRegistry;
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.MessageDispatcher;
+import com.messengerCommon.transport.NetworkService;
+import com.messengerCommon.transport.SocketSettings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The client's link to the server, kept up for as long as the client runs. A supervisor thread
+ * connects, sends a {@link com.messengerCommon.codec.FrameType#HELLO} with the client's id and
+ * the last message it received, which is all the server needs to resume the session, and reads
+ * until the connection fails. It then waits for a {@link Backoff} delay and connects again.
+ * <p>
+ * Nothing is written to the socket by the caller: {@link #sendMessage} only queues the message
+ * for a writer thread and {@link #sendFile} hands the file to an upload thread, and both return
+ * a future that completes when the server has the message or the file. The FX thread can call
+ * them without ever waiting for the network or the disk.
+ * <p>
+ * Outgoing messages are numbered and kept until the server acknowledges them. After a reconnect
+ * the writer sends the ones still unacknowledged again before anything new, and the server drops
+ * those it already has. An upload cut off by a lost connection is started again once the
+ * connection is back, and the server only asks for the chunks it does not hold yet.
+ * <p>
+ * A server that has vanished without closing the socket is noticed by a heartbeat thread: once
+ * nothing has arrived for the {@link HeartbeatSettings} interval it has the writer send a ping,
+ * and once nothing has arrived for the timeout it closes the connection so the supervisor
+ * reconnects.
+ * <p>
+ * The connection keeps its own {@link #getMetrics() metrics}: the messages and bytes that went
+ * each way, how many messages and uploads are outstanding, and how long the server took to
+ * acknowledge each message.
+ */
+public class ServerConnection implements Closeable {
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    /** A connection that lasted this long starts the backoff over when it fails. */
+    private static final long STABLE_CONNECTION_MILLIS = 10_000;
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /** Most messages the writer sends with one flush, so uploads get the socket in between. */
+    private static final int MAX_WRITE_BATCH = 256;
+    /** How many times per heartbeat interval the connection is checked. */
+    private static final int HEARTBEAT_CHECKS_PER_INTERVAL = 4;
+    private static final Logger logger = Logger.getLogger(ServerConnection.class.getName());
+
+    public interface Listener {
+        void onMessage(String message);
+
+        void onFile(String fileName, Path file);
+    }
+
+    private record PendingMessage(long sequence, String text, long queuedNanos, CompletableFuture<Void> acknowledged) {
+    }
+
+    private final String host;
+    private final int port;
+    private final Path downloadDirectory;
+    private final SocketSettings socketSettings;
+    private final HeartbeatSettings heartbeatSettings;
+    private final Listener listener;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LongAdder messagesSent = metrics.counter("messenger_client_messages_sent_total",
+            "Messages queued to be sent to the server");
+    private final LongAdder messagesReceived = metrics.counter("messenger_client_messages_received_total",
+            "Messages received from the server");
+    private final LongAdder bytesSent = metrics.counter("messenger_client_sent_bytes_total",
+            "Bytes of the frames sent to the server; file chunks count their content only");
+    private final LongAdder bytesReceived = metrics.counter("messenger_client_received_bytes_total",
+            "Bytes of the frames received from the server");
+    private final LongAdder pendingUploads = new LongAdder();
+    private final LatencyHistogram acknowledgeLatency = metrics.histogram("messenger_client_ack_latency_seconds",
+            "From a message being queued to the server acknowledging it, reconnects included");
+    private final String clientId = UUID.randomUUID().toString();
+    private final DiskWriter diskWriter = new DiskWriter("disk-writer");
+    private final Thread supervisor;
+    private final Thread writer;
+    private final ExecutorService uploader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Guards everything below it. Never held while writing to the socket. */
+    private final Object lock = new Object();
+    /** Sent or waiting to be sent, and not acknowledged yet, oldest first. */
+    private final Deque<PendingMessage> unacknowledged = new ArrayDeque<>();
+    /** Queued since the writer last looked; each one is in {@link #unacknowledged} as well. */
+    private final List<PendingMessage> queued = new ArrayList<>();
+    private long nextSequence = 1;
+    /** Numbers the connections for Flight Recorder events; only the supervisor touches it. */
+    private long connectionCount;
+    private NetworkService networkService;
+    private SocketChannel channel;
+    private boolean closed;
+    /** Set by the heartbeat for the writer, which sends a ping with its next batch. */
+    private boolean pingDue;
+    /** When the last frame arrived on the current connection. */
+    private volatile long lastReadNanos;
+    /** Sequence number of the last message received from the server, or -1. */
+    private volatile long lastSeenSequence = -1;
+
+    public ServerConnection(String host, int port, Path downloadDirectory, Listener listener) {
+        this(host, port, downloadDirectory, SocketSettings.DEFAULT, HeartbeatSettings.DEFAULT, listener);
+    }
+
+    public ServerConnection(String host, int port, Path downloadDirectory, SocketSettings socketSettings,
+                            HeartbeatSettings heartbeatSettings, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.downloadDirectory = downloadDirectory;
+        this.socketSettings = socketSettings;
+        this.heartbeatSettings = heartbeatSettings;
+        this.listener = listener;
+        this.supervisor = new Thread(this::supervise, "server-connection");
+        supervisor.setDaemon(true);
+        this.writer = new Thread(this::writeMessages, "message-writer");
+        writer.setDaemon(true);
+        metrics.gauge("messenger_client_connected", "1 while connected to the server, 0 otherwise",
+                () -> isConnected() ? 1 : 0);
+        metrics.gauge("messenger_client_unacknowledged_messages",
+                "Messages sent or queued that the server has not acknowledged", this::getUnacknowledgedCount);
+        metrics.gauge("messenger_client_uploads", "Files queued or being sent", pendingUploads::sum);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private boolean isConnected() {
+        synchronized (lock) {
+            return networkService != null;
+        }
+    }
+
+    private long getUnacknowledgedCount() {
+        synchronized (lock) {
+            return unacknowledged.size();
+        }
+    }
+
+    public void start() {
+        supervisor.start();
+        writer.start();
+        long checkMillis = Math.max(1, heartbeatSettings.intervalMillis() / HEARTBEAT_CHECKS_PER_INTERVAL);
+        heartbeat.scheduleAtFixedRate(this::checkHeartbeat, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void supervise() {
+        Backoff backoff = new Backoff(INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+        while (!isClosed()) {
+            long connectedAt = System.nanoTime();
+            long connectionId = ++connectionCount;
+            SocketChannel socketChannel = null;
+            NetworkService service = null;
+            MessageDispatcher dispatcher = null;
+            try {
+                socketChannel = SocketChannel.open();
+                socketSettings.applyTo(socketChannel);
+                socketChannel.connect(new InetSocketAddress(host, port));
+                service = new NetworkService(
+                        new BufferedOutputStream(socketChannel.socket().getOutputStream(), WRITE_BUFFER_SIZE),
+                        new BufferedInputStream(socketChannel.socket().getInputStream()), socketChannel,
+                        connectionId, bytesSent, bytesReceived);
+                dispatcher = new MessageDispatcher(new ConnectionEvents(service), new FileReceiver(downloadDirectory,
+                        diskWriter, FileWriteMode.CHANNEL, true, FileReceiver.DEFAULT_MAX_FILE_SIZE, connectionId,
+                        () -> host + ":" + port), connectionId);
+                service.sendHello(lastSeenSequence + 1, clientId);
+                connected(service, socketChannel);
+                logger.info("Connected with server: " + host + ":" + port);
+                while (service.readFrame(dispatcher)) {
+                    lastReadNanos = System.nanoTime();
+                }
+                logger.warning("The server closed the connection");
+            } catch (IOException e) {
+                if (!isClosed()) {
+                    logger.warning("Connection to " + host + ":" + port + " failed: " + e);
+                }
+            } finally {
+                disconnected(service, socketChannel);
+                if (dispatcher != null) {
+                    dispatcher.close();
+                }
+            }
+            if (System.nanoTime() - connectedAt > STABLE_CONNECTION_MILLIS * 1_000_000) {
+                backoff.reset();
+            }
+            if (!isClosed()) {
+                try {
+                    Thread.sleep(backoff.nextDelayMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a connection that has said hello to the writer and the uploads.
+     */
+    private void connected(NetworkService service, SocketChannel socketChannel) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            networkService = service;
+            channel = socketChannel;
+            lastReadNanos = System.nanoTime();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the channel under the lock, so nobody picks up the dead connection in between.
+     */
+    private void disconnected(NetworkService service, SocketChannel socketChannel) {
+        synchronized (lock) {
+            if (service != null && networkService == service) {
+                networkService = null;
+                channel = null;
+            }
+            if (socketChannel != null) {
+                closeQuietly(socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection a write failed on, unless it has already been replaced, so the
+     * supervisor notices at once and reconnects.
+     */
+    private void dropConnection(NetworkService failed) {
+        synchronized (lock) {
+            if (networkService == failed) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Asks the writer for a ping when the server has been quiet for an interval and drops the
+     * connection when it has been quiet for the whole timeout. Never writes itself, so a stalled
+     * socket cannot hold it up.
+     */
+    private void checkHeartbeat() {
+        synchronized (lock) {
+            if (networkService == null) {
+                return;
+            }
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+            if (idleMillis >= heartbeatSettings.timeoutMillis()) {
+                logger.warning("Nothing from the server for " + idleMillis + " ms, reconnecting");
+                closeQuietly(channel);
+            } else if (idleMillis >= heartbeatSettings.intervalMillis()) {
+                pingDue = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not close the connection", e);
+        }
+    }
+
+    /**
+     * Queues a message for the writer thread and returns at once, connected or not.
+     *
+     * @return completes when the server has logged the message, or fails if this connection is
+     * closed first or the message is too long to send.
+     */
+    public CompletableFuture<Void> sendMessage(String text) {
+        if (!Frames.fitsMessage(text)) {
+            return CompletableFuture.failedFuture(new IOException("The message is longer than "
+                    + Frames.MAX_MESSAGE_TEXT_LENGTH + " bytes"));
+        }
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Connection closed"));
+            }
+            PendingMessage message = new PendingMessage(nextSequence++, text, System.nanoTime(), acknowledged);
+            unacknowledged.add(message);
+            queued.add(message);
+            lock.notifyAll();
+        }
+        messagesSent.increment();
+        return acknowledged;
+    }
+
+    /**
+     * Sends queued messages in the order of their numbers, whatever has piled up since the last
+     * round with one flush per {@value #MAX_WRITE_BATCH}, after a ping if the heartbeat asked for
+     * one. On a new connection it starts with everything still unacknowledged, which includes
+     * whatever was queued meanwhile; a message it cannot write stays unacknowledged and goes out
+     * again on the next connection.
+     */
+    private void writeMessages() {
+        NetworkService service = null;
+        long sentThrough = 0;
+        List<PendingMessage> batch = new ArrayList<>();
+        List<ByteBuffer> frames = new ArrayList<>();
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (!closed && (networkService == null
+                            || networkService == service && queued.isEmpty() && !pingDue)) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                if (networkService != service) {
+                    service = networkService;
+                    sentThrough = 0;
+                    batch.addAll(unacknowledged);
+                } else {
+                    batch.addAll(queued);
+                }
+                queued.clear();
+                if (pingDue) {
+                    pingDue = false;
+                    frames.add(Frames.ping());
+                }
+            }
+            try {
+                long framed = sentThrough;
+                for (PendingMessage message : batch) {
+                    if (message.sequence() > framed) {
+                        frames.add(Frames.message(message.sequence(), message.text()));
+                        framed = message.sequence();
+                    }
+                    if (frames.size() == MAX_WRITE_BATCH) {
+                        service.sendFrames(frames);
+                        frames.clear();
+                    }
+                }
+                service.sendFrames(frames);
+                sentThrough = framed;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not send a message, it will be sent after reconnecting", e);
+                dropConnection(service);
+            }
+            batch.clear();
+            frames.clear();
+        }
+    }
+
+    /**
+     * Queues a file for the upload thread, which sends files one at a time and waits for the
+     * connection to come back as often as it takes, up to {@value #MAX_UPLOAD_ATTEMPTS} attempts.
+     *
+     * @return completes when the whole file has been sent.
+     */
+    public CompletableFuture<Void> sendFile(Path file) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        pendingUploads.increment();
+        try {
+            uploader.execute(() -> {
+                try {
+                    upload(file);
+                    sent.complete(null);
+                } catch (IOException | InterruptedException e) {
+                    sent.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sent.completeExceptionally(new IOException("Connection closed"));
+        }
+        sent.whenComplete((result, error) -> pendingUploads.decrement());
+        return sent;
+    }
+
+    private void upload(Path file) throws IOException, InterruptedException {
+        NetworkService service = awaitConnection(null);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                service.sendFile(file);
+                return;
+            } catch (FileSystemException e) {
+                throw e;
+            } catch (IOException e) {
+                if (isClosed() || attempt == MAX_UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                logger.log(Level.WARNING, "Upload of " + file.getFileName() + " was cut off, resuming after reconnecting", e);
+                dropConnection(service);
+                service = awaitConnection(service);
+            }
+        }
+    }
+
+    /**
+     * @param stale a connection that has failed, or null.
+     */
+    private NetworkService awaitConnection(NetworkService stale) throws IOException, InterruptedException {
+        synchronized (lock) {
+            while (!closed && (networkService == null || networkService == stale)) {
+                lock.wait();
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            return networkService;
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /**
+     * Disconnects for good. Messages the server has not acknowledged yet fail.
+     */
+    @Override
+    public void close() {
+        List<PendingMessage> abandoned;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            abandoned = new ArrayList<>(unacknowledged);
+            unacknowledged.clear();
+            queued.clear();
+            lock.notifyAll();
+        }
+        supervisor.interrupt();
+        heartbeat.shutdownNow();
+        uploader.shutdownNow();
+        diskWriter.close();
+        IOException closedException = new IOException("Connection closed");
+        abandoned.forEach(message -> message.acknowledged().completeExceptionally(closedException));
+    }
+
+    private class ConnectionEvents implements MessageDispatcher.Listener {
+        private final NetworkService service;
+
+        ConnectionEvents(NetworkService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void onMessage(long sequence, String message) {
+            if (sequence >= 0) {
+                lastSeenSequence = sequence;
+            }
+            messagesReceived.increment();
+            listener.onMessage(message);
+        }
+
+        @Override
+        public void onFile(String fileName, Path file) {
+            listener.onFile(fileName, file);
+        }
+
+        @Override
+        public void onPing() throws IOException {
+            service.sendPong();
+        }
+
+        @Override
+        public void requestFileRanges(long streamId, long[] missingRanges) throws IOException {
+            service.requestFileRanges(streamId, missingRanges);
+        }
+
+        @Override
+        public void onFileRangesRequested(long streamId, long[] missingRanges) {
+            service.resumeFile(streamId, missingRanges);
+        }
+
+        @Override
+        public void onHello(long resumeFrom, String id) throws ProtocolException {
+            throw new ProtocolException("The server does not say hello");
+        }
+
+        /**
+         * Completes the futures outside the lock, since callers' callbacks run right there.
+         */
+        @Override
+        public void onAcknowledged(long sequence) {
+            List<PendingMessage> acknowledged = new ArrayList<>();
+            synchronized (lock) {
+                while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence() <= sequence) {
+                    acknowledged.add(unacknowledged.removeFirst());
+                }
+            }
+            for (PendingMessage message : acknowledged) {
+                acknowledgeLatency.recordSince(message.queuedNanos());
+                message.acknowledged().complete(null);
+            }
+        }
+    }
+}
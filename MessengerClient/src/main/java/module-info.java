@@ -2,6 +2,7 @@ module com.messangernbclient {
     requires javafx.controls;
     requires javafx.fxml;
     requires java.logging;
+    requires com.messangernbcommon;
 
 
     opens com.messengerClient to javafx.fxml;
@@ -0,0 +1,93 @@
+package com.messengerCommon.codec;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a frame, shared by the encoder and both decoders:
+ * <pre>
+ *   version   1 byte
+ *   type      1 byte   ({@link FrameType#getId()})
+ *   flags     1 byte
+ *   stream id varint   (0 for chat messages, one id per file transfer)
+ *   length    varint   (payload bytes that follow)
+ *   payload   length bytes
+ * </pre>
+ * Varints are unsigned LEB128: seven bits per byte, least significant group first, with the high
+ * bit set on every byte but the last.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 1;
+    public static final int FIXED_HEADER_LENGTH = 3;
+    public static final int MAX_VARINT_LENGTH = 10;
+    public static final int MAX_HEADER_LENGTH = FIXED_HEADER_LENGTH + MAX_VARINT_LENGTH + 5;
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 1024 * 1024;
+    public static final int FLAG_NONE = 0;
+    /** On a {@link FrameType#MESSAGE}: the payload starts with the message's sequence number. */
+    public static final int FLAG_SEQUENCED = 1;
+
+    private FrameCodec() {
+    }
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a varint at the buffer's position and advances past it.
+     */
+    public static long getVarint(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint is longer than " + MAX_VARINT_LENGTH + " bytes");
+    }
+
+    public static int headerLength(long streamId, int payloadLength) {
+        return FIXED_HEADER_LENGTH + varintLength(streamId) + varintLength(payloadLength);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the payload is longer than a peer with the default limit
+     *                                  accepts; such a frame would cost the connection.
+     */
+    public static void putHeader(ByteBuffer out, FrameType type, int flags, long streamId, int payloadLength) {
+        if (payloadLength < 0 || payloadLength > DEFAULT_MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload of " + payloadLength + " bytes exceeds the limit of "
+                    + DEFAULT_MAX_PAYLOAD_LENGTH);
+        }
+        out.put((byte) VERSION);
+        out.put((byte) type.getId());
+        out.put((byte) flags);
+        putVarint(out, streamId);
+        putVarint(out, payloadLength);
+    }
+
+    /**
+     * Encodes a complete frame into a new buffer that is ready to be written.
+     */
+    public static ByteBuffer encode(FrameType type, int flags, long streamId, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(streamId, length) + length);
+        putHeader(frame, type, flags, streamId, length);
+        frame.put(payload, offset, length);
+        return frame.flip();
+    }
+}
@@ -0,0 +1,111 @@
+package com.messengerCommon.codec;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for non-blocking channels. Complete frames are handed to the handler with
+ * the payload exposed as a window over the caller's buffer, so no frame (and in particular no
+ * control frame) causes an allocation. The announced length is checked against the limit before
+ * the caller is asked to make room for the payload.
+ */
+public class FrameDecoder {
+
+    public interface Handler {
+        /**
+         * @param payload a view of the frame payload, only valid until this method returns.
+         */
+        void onFrame(FrameType type, int flags, long streamId, ByteBuffer payload) throws IOException;
+    }
+
+    private final int maxPayloadLength;
+    private long varintValue;
+    private int varintEnd;
+    private int requiredBytes;
+
+    public FrameDecoder() {
+        this(FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    public FrameDecoder(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Decodes every complete frame between the buffer's position and limit. An incomplete frame
+     * is left in the buffer, and {@link #getRequiredBytes()} tells how large it will be.
+     *
+     * @return the number of frames handed to the handler.
+     */
+    public int decode(ByteBuffer in, Handler handler) throws IOException {
+        int frames = 0;
+        while (true) {
+            int start = in.position();
+            int limit = in.limit();
+            requiredBytes = FrameCodec.MAX_HEADER_LENGTH;
+            if (limit - start < FrameCodec.FIXED_HEADER_LENGTH) {
+                return frames;
+            }
+            int version = in.get(start) & 0xFF;
+            if (version != FrameCodec.VERSION) {
+                throw new ProtocolException("Unsupported frame version: " + version);
+            }
+            FrameType type = FrameType.fromId(in.get(start + 1) & 0xFF);
+            int flags = in.get(start + 2) & 0xFF;
+            if (!readVarint(in, start + FrameCodec.FIXED_HEADER_LENGTH, limit)) {
+                return frames;
+            }
+            long streamId = varintValue;
+            if (!readVarint(in, varintEnd, limit)) {
+                return frames;
+            }
+            if (varintValue < 0 || varintValue > maxPayloadLength) {
+                throw new ProtocolException("Frame payload of " + varintValue + " bytes exceeds the limit of "
+                        + maxPayloadLength);
+            }
+            int payloadStart = varintEnd;
+            int frameEnd = payloadStart + (int) varintValue;
+            if (frameEnd > limit) {
+                requiredBytes = frameEnd - start;
+                return frames;
+            }
+            in.position(payloadStart).limit(frameEnd);
+            try {
+                handler.onFrame(type, flags, streamId, in);
+            } finally {
+                in.limit(limit).position(frameEnd);
+            }
+            frames++;
+        }
+    }
+
+    private boolean readVarint(ByteBuffer in, int index, int limit) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (index >= limit) {
+                return false;
+            }
+            byte b = in.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                varintValue = value;
+                varintEnd = index;
+                return true;
+            }
+        }
+        throw new ProtocolException("Varint is longer than " + FrameCodec.MAX_VARINT_LENGTH + " bytes");
+    }
+
+    /**
+     * The size the incomplete frame at the front of the buffer needs, header included. A buffer
+     * smaller than this can never hold it.
+     */
+    public int getRequiredBytes() {
+        return requiredBytes;
+    }
+
+    public int getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+}
@@ -0,0 +1,104 @@
+package com.messengerCommon.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a blocking stream. The payload buffer is reused from frame to frame and only
+ * grows, up to the payload limit, when a larger frame arrives; the announced length is checked
+ * before anything is allocated for it.
+ */
+public class FrameReader {
+    private static final int INITIAL_PAYLOAD_CAPACITY = 8 * 1024;
+
+    private final InputStream inputStream;
+    private final int maxPayloadLength;
+    private byte[] payload = new byte[INITIAL_PAYLOAD_CAPACITY];
+    private ByteBuffer payloadView = ByteBuffer.wrap(payload);
+    private long bytesRead;
+
+    public FrameReader(InputStream inputStream) {
+        this(inputStream, FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @param inputStream should be buffered, the header is read one byte at a time.
+     */
+    public FrameReader(InputStream inputStream, int maxPayloadLength) {
+        this.inputStream = inputStream;
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Blocks until one frame has been read and handled.
+     *
+     * @return false if the stream ended cleanly before the frame began.
+     */
+    public boolean readFrame(FrameDecoder.Handler handler) throws IOException {
+        int version = inputStream.read();
+        if (version < 0) {
+            return false;
+        }
+        if (version != FrameCodec.VERSION) {
+            throw new ProtocolException("Unsupported frame version: " + version);
+        }
+        FrameType type = FrameType.fromId(readByte());
+        int flags = readByte();
+        long streamId = readVarint();
+        long length = readVarint();
+        if (length < 0 || length > maxPayloadLength) {
+            throw new ProtocolException("Frame payload of " + length + " bytes exceeds the limit of " + maxPayloadLength);
+        }
+        int payloadLength = (int) length;
+        if (payloadLength > payload.length) {
+            payload = new byte[Math.max(payloadLength, Math.min(payload.length * 2, maxPayloadLength))];
+            payloadView = ByteBuffer.wrap(payload);
+        }
+        readFully(payload, payloadLength);
+        payloadView.limit(payloadLength).position(0);
+        bytesRead += FrameCodec.headerLength(streamId, payloadLength) + payloadLength;
+        handler.onFrame(type, flags, streamId, payloadView);
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException("Stream ended inside a frame header");
+        }
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint is longer than " + FrameCodec.MAX_VARINT_LENGTH + " bytes");
+    }
+
+    private void readFully(byte[] target, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = inputStream.read(target, filled, length - filled);
+            if (read < 0) {
+                throw new EOFException("Stream ended inside a frame payload");
+            }
+            filled += read;
+        }
+    }
+
+    /**
+     * @return the bytes of every complete frame read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+}
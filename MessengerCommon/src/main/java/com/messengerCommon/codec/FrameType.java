@@ -0,0 +1,81 @@
+package com.messengerCommon.codec;
+
+import java.net.ProtocolException;
+
+/**
+ * The kinds of frame on the wire. Ids are part of the protocol and must never be reused.
+ */
+public enum FrameType {
+    /**
+     * A chat message; the payload is UTF-8 text. Messages the server has logged carry
+     * {@link FrameCodec#FLAG_SEQUENCED} and their log id as a varint before the text; messages
+     * from a client carry the flag and the client's own number for the message, counted from 1,
+     * which the server answers with an {@link #ACK}.
+     */
+    MESSAGE(1, false),
+    /**
+     * Announces a file on a new stream; the payload is the size as a varint, a 64-bit fingerprint
+     * and the UTF-8 name. The fingerprint is a hash of the file's name, size and modification
+     * time, not of its content, so a receiver can tell whether a partial copy it holds is of the
+     * same version without the sender reading the whole file first.
+     */
+    FILE_START(2, false),
+    /** Part of the file on the frame's stream; the payload is a 64-bit offset and the content. */
+    FILE_CHUNK(3, false),
+    /** Marks the file on the frame's stream as complete. */
+    FILE_END(4, true),
+    PING(5, true),
+    PONG(6, true),
+    /**
+     * Sent back by the receiver of a file it already holds part of: the byte ranges it still
+     * needs, as varint offset and length pairs. The frame's stream is the one the file arrives on.
+     */
+    FILE_RESUME(7, false),
+    /**
+     * Sent by a client once after connecting: one past the sequence number of the last message it
+     * received, as a varint, or 0 if it has none, followed by its UTF-8 client id. The server sends
+     * the messages it missed before any new ones.
+     */
+    HELLO(8, false),
+    /**
+     * Sent by the server: the client's own number of the last message from that client it has
+     * logged, as a varint. The client may forget every message up to that one; anything later it
+     * sends again after a reconnect, and the server drops what it already has.
+     */
+    ACK(9, false);
+
+    private static final FrameType[] BY_ID = new FrameType[256];
+
+    static {
+        for (FrameType type : values()) {
+            BY_ID[type.id] = type;
+        }
+    }
+
+    private final int id;
+    private final boolean control;
+
+    FrameType(int id, boolean control) {
+        this.id = id;
+        this.control = control;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Control frames carry no payload of their own and are decoded without allocating.
+     */
+    public boolean isControl() {
+        return control;
+    }
+
+    public static FrameType fromId(int id) throws ProtocolException {
+        FrameType type = id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+        if (type == null) {
+            throw new ProtocolException("Unknown frame type: " + id);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,229 @@
+package com.messengerCommon.codec;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the frames of the messenger protocol and reads their payloads.
+ */
+public final class Frames {
+    public static final long MESSAGE_STREAM = 0;
+    public static final int FILE_CHUNK_SIZE = 64 * 1024;
+    public static final int CHUNK_OFFSET_LENGTH = Long.BYTES;
+    public static final int FINGERPRINT_LENGTH = Long.BYTES;
+    /** The most UTF-8 bytes of text a message carries, whatever its sequence number. */
+    public static final int MAX_MESSAGE_TEXT_LENGTH = FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH - FrameCodec.MAX_VARINT_LENGTH;
+
+    private static final ByteBuffer PING = controlFrame(FrameType.PING);
+    private static final ByteBuffer PONG = controlFrame(FrameType.PONG);
+
+    private Frames() {
+    }
+
+    private static ByteBuffer controlFrame(FrameType type) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(MESSAGE_STREAM, 0));
+        FrameCodec.putHeader(frame, type, FrameCodec.FLAG_NONE, MESSAGE_STREAM, 0);
+        return frame.flip();
+    }
+
+    public static ByteBuffer ping() {
+        return PING.duplicate();
+    }
+
+    public static ByteBuffer pong() {
+        return PONG.duplicate();
+    }
+
+    /**
+     * Whether the text is short enough to send as a message. Building a frame for a longer one
+     * throws {@link IllegalArgumentException}, as the peer would drop the connection over it.
+     */
+    public static boolean fitsMessage(String text) {
+        // no character takes more than three bytes in UTF-8
+        return text.length() <= MAX_MESSAGE_TEXT_LENGTH / 3
+                || text.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_TEXT_LENGTH;
+    }
+
+    public static ByteBuffer message(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_NONE, MESSAGE_STREAM, payload, 0, payload.length);
+    }
+
+    /**
+     * A message together with a sequence number: the id the server's log gave it, so the client
+     * can say where to resume after a reconnect, or, from a client, the client's own number for
+     * it, so the server can acknowledge it and drop it if it arrives twice.
+     */
+    public static ByteBuffer message(long sequence, String text) {
+        return textFrame(FrameType.MESSAGE, FrameCodec.FLAG_SEQUENCED, sequence, text);
+    }
+
+    /**
+     * @param resumeFrom one past the sequence number of the last message received, or 0.
+     */
+    public static ByteBuffer hello(long resumeFrom, String clientId) {
+        return textFrame(FrameType.HELLO, FrameCodec.FLAG_NONE, resumeFrom, clientId);
+    }
+
+    /**
+     * @param sequence the client's own number of the last message from it the server has logged.
+     */
+    public static ByteBuffer ack(long sequence) {
+        int payloadLength = FrameCodec.varintLength(sequence);
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(MESSAGE_STREAM, payloadLength) + payloadLength);
+        FrameCodec.putHeader(frame, FrameType.ACK, FrameCodec.FLAG_NONE, MESSAGE_STREAM, payloadLength);
+        FrameCodec.putVarint(frame, sequence);
+        return frame.flip();
+    }
+
+    private static ByteBuffer textFrame(FrameType type, int flags, long number, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = FrameCodec.varintLength(number) + textBytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(MESSAGE_STREAM, payloadLength) + payloadLength);
+        FrameCodec.putHeader(frame, type, flags, MESSAGE_STREAM, payloadLength);
+        FrameCodec.putVarint(frame, number);
+        frame.put(textBytes);
+        return frame.flip();
+    }
+
+    /**
+     * Announces a file of {@code size} bytes on a new stream. The fingerprint lets a receiver
+     * that holds part of the same file from an earlier transfer ask only for what it is missing.
+     */
+    public static ByteBuffer fileStart(long streamId, long size, long fingerprint, String fileName) {
+        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = FrameCodec.varintLength(size) + FINGERPRINT_LENGTH + nameBytes.length;
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(streamId, payloadLength) + payloadLength);
+        FrameCodec.putHeader(frame, FrameType.FILE_START, FrameCodec.FLAG_NONE, streamId, payloadLength);
+        FrameCodec.putVarint(frame, size);
+        frame.putLong(fingerprint);
+        frame.put(nameBytes);
+        return frame.flip();
+    }
+
+    /**
+     * The largest buffer a chunk frame of {@link #FILE_CHUNK_SIZE} bytes needs on the given stream.
+     */
+    public static int maxFileChunkFrameLength(long streamId) {
+        int payloadLength = CHUNK_OFFSET_LENGTH + FILE_CHUNK_SIZE;
+        return FrameCodec.headerLength(streamId, payloadLength) + payloadLength;
+    }
+
+    /**
+     * Writes the header and offset of a chunk frame; the caller appends exactly {@code length}
+     * bytes of file content after it.
+     */
+    public static void putFileChunkHeader(ByteBuffer frame, long streamId, long offset, int length) {
+        FrameCodec.putHeader(frame, FrameType.FILE_CHUNK, FrameCodec.FLAG_NONE, streamId, CHUNK_OFFSET_LENGTH + length);
+        frame.putLong(offset);
+    }
+
+    public static ByteBuffer fileEnd(long streamId) {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(streamId, 0));
+        FrameCodec.putHeader(frame, FrameType.FILE_END, FrameCodec.FLAG_NONE, streamId, 0);
+        return frame.flip();
+    }
+
+    /**
+     * Asks the sender of the file on {@code streamId} for the given byte ranges only.
+     *
+     * @param ranges offset and length pairs.
+     */
+    public static ByteBuffer fileResume(long streamId, long[] ranges) {
+        int payloadLength = 0;
+        for (long value : ranges) {
+            payloadLength += FrameCodec.varintLength(value);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength(streamId, payloadLength) + payloadLength);
+        FrameCodec.putHeader(frame, FrameType.FILE_RESUME, FrameCodec.FLAG_NONE, streamId, payloadLength);
+        for (long value : ranges) {
+            FrameCodec.putVarint(frame, value);
+        }
+        return frame.flip();
+    }
+
+    public static String readText(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            String text = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining(), StandardCharsets.UTF_8);
+            payload.position(payload.limit());
+            return text;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the varint that starts a sequenced {@link FrameType#MESSAGE}, a {@link FrameType#HELLO}
+     * or an {@link FrameType#ACK}, leaving the payload positioned at the text.
+     */
+    public static long readSequence(ByteBuffer payload) throws ProtocolException {
+        try {
+            return FrameCodec.getVarint(payload);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated sequence number");
+        }
+    }
+
+    /**
+     * Reads the announced size at the start of a {@link FrameType#FILE_START} payload.
+     */
+    public static long readFileSize(ByteBuffer payload) throws ProtocolException {
+        try {
+            return FrameCodec.getVarint(payload);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated file header");
+        }
+    }
+
+    /**
+     * Reads the fingerprint that follows the size in a {@link FrameType#FILE_START} payload.
+     */
+    public static long readFileFingerprint(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() < FINGERPRINT_LENGTH) {
+            throw new ProtocolException("Truncated file header");
+        }
+        return payload.getLong();
+    }
+
+    /**
+     * Reads the offset and length pairs of a {@link FrameType#FILE_RESUME} payload.
+     */
+    public static long[] readRanges(ByteBuffer payload) throws ProtocolException {
+        int count = 0;
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            if (payload.get(i) >= 0) {
+                count++;
+            }
+        }
+        if (count % 2 != 0) {
+            throw new ProtocolException("Range list has an offset without a length");
+        }
+        long[] ranges = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                ranges[i] = FrameCodec.getVarint(payload);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated range list");
+        }
+        if (payload.hasRemaining()) {
+            throw new ProtocolException("Truncated range list");
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads the offset at the start of a {@link FrameType#FILE_CHUNK} payload, leaving the
+     * payload positioned at the chunk's content.
+     */
+    public static long readChunkOffset(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() < CHUNK_OFFSET_LENGTH) {
+            throw new ProtocolException("Truncated file chunk");
+        }
+        return payload.getLong();
+    }
+}
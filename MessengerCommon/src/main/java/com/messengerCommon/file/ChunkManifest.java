@@ -0,0 +1,217 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.Frames;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+/**
+ * The sidecar of a partial file: which of its chunks have been written, each with the CRC32C of
+ * its content. The layout is a fixed header followed by one entry per written chunk:
+ * <pre>
+ *   magic        4 bytes
+ *   version      1 byte
+ *   chunk size   4 bytes
+ *   file size    8 bytes
+ *   fingerprint  8 bytes
+ *   entries      chunk index (4 bytes) and CRC32C (4 bytes), appended as chunks are written
+ * </pre>
+ * Entries are appended after their chunk has been written and nothing is forced to disk, so after
+ * a crash either may be missing or torn. That is why {@link #open} re-reads every recorded chunk
+ * and only trusts the ones whose content still matches the checksum.
+ */
+final class ChunkManifest implements Closeable {
+    private static final int MAGIC = 0x4D534D46;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 1 + 4 + 8 + 8;
+    private static final int ENTRY_LENGTH = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int chunkCount;
+    private final BitSet verified = new BitSet();
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH);
+    private final CRC32C crc = new CRC32C();
+    private int verifiedCount;
+
+    private ChunkManifest(Path path, FileChannel channel, int chunkCount) {
+        this.path = path;
+        this.channel = channel;
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Number of chunks a file of the given size is sent in.
+     */
+    static long chunkCount(long size) {
+        return (size + Frames.FILE_CHUNK_SIZE - 1) / Frames.FILE_CHUNK_SIZE;
+    }
+
+    /**
+     * Picks up the manifest of an earlier transfer of the same file, verifying the chunks it lists
+     * against {@code partFile}, or starts a new one and empties {@code partFile} when there is no
+     * such manifest or it belongs to another version of the file.
+     */
+    static ChunkManifest open(Path path, FileChannel partFile, long size, long fingerprint) throws IOException {
+        int chunkCount = (int) chunkCount(size);
+        if (Files.exists(path)) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (matches(channel, size, fingerprint)) {
+                    ChunkManifest manifest = new ChunkManifest(path, channel, chunkCount);
+                    manifest.verify(partFile, size);
+                    return manifest;
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+        }
+        partFile.truncate(0);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH)
+                .putInt(MAGIC).put((byte) VERSION).putInt(Frames.FILE_CHUNK_SIZE).putLong(size).putLong(fingerprint)
+                .flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        return new ChunkManifest(path, channel, chunkCount);
+    }
+
+    private static boolean matches(FileChannel channel, long size, long fingerprint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+            // read until the header is complete or the file ends
+        }
+        header.flip();
+        return header.remaining() == HEADER_LENGTH && header.getInt() == MAGIC && header.get() == VERSION
+                && header.getInt() == Frames.FILE_CHUNK_SIZE && header.getLong() == size
+                && header.getLong() == fingerprint;
+    }
+
+    /**
+     * Reads the entries after the header and keeps the chunks whose content on disk still has the
+     * recorded checksum. A later entry for the same chunk replaces an earlier one, and a torn entry
+     * at the end is cut off so new entries line up.
+     */
+    private void verify(FileChannel partFile, long size) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(ENTRY_LENGTH * 1024);
+        ByteBuffer chunk = ByteBuffer.allocate(Frames.FILE_CHUNK_SIZE);
+        long readPosition = HEADER_LENGTH;
+        int read;
+        while ((read = channel.read(entries, readPosition)) > 0) {
+            readPosition += read;
+            entries.flip();
+            while (entries.remaining() >= ENTRY_LENGTH) {
+                int index = entries.getInt();
+                int checksum = entries.getInt();
+                if (index < 0 || index >= chunkCount) {
+                    continue;
+                }
+                if (matchesOnDisk(partFile, chunk, index, size, checksum)) {
+                    markVerified(index);
+                } else if (verified.get(index)) {
+                    verified.clear(index);
+                    verifiedCount--;
+                }
+            }
+            entries.compact();
+        }
+        long end = readPosition - entries.position();
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    private boolean matchesOnDisk(FileChannel partFile, ByteBuffer chunk, int index, long size, int checksum)
+            throws IOException {
+        long offset = (long) index * Frames.FILE_CHUNK_SIZE;
+        chunk.clear().limit((int) Math.min(Frames.FILE_CHUNK_SIZE, size - offset));
+        long position = offset;
+        while (chunk.hasRemaining()) {
+            int read = partFile.read(chunk, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        crc.reset();
+        crc.update(chunk.flip());
+        return (int) crc.getValue() == checksum;
+    }
+
+    private void markVerified(int index) {
+        if (!verified.get(index)) {
+            verified.set(index);
+            verifiedCount++;
+        }
+    }
+
+    /**
+     * Records a chunk that has just been written to the partial file.
+     *
+     * @param content the chunk's content; its position is left unchanged.
+     */
+    void record(int index, ByteBuffer content) throws IOException {
+        crc.reset();
+        crc.update(content.duplicate());
+        entry.clear().putInt(index).putInt((int) crc.getValue()).flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+        markVerified(index);
+    }
+
+    int getVerifiedCount() {
+        return verifiedCount;
+    }
+
+    boolean isComplete() {
+        return verifiedCount == chunkCount;
+    }
+
+    /**
+     * The byte ranges of the chunks not verified yet, as offset and length pairs. When there are
+     * more than {@code maxRanges} gaps the last range runs to the end of the file.
+     */
+    long[] missingRanges(long size, int maxRanges) {
+        long[] ranges = new long[2 * Math.min(maxRanges, chunkCount - verifiedCount)];
+        int count = 0;
+        int start = verified.nextClearBit(0);
+        while (start < chunkCount && count < ranges.length) {
+            int next = verified.nextSetBit(start);
+            int end = next < 0 ? chunkCount : next;
+            if (count + 2 == ranges.length && verified.nextClearBit(end) < chunkCount) {
+                // out of ranges with gaps still to come
+                end = chunkCount;
+            }
+            long offset = (long) start * Frames.FILE_CHUNK_SIZE;
+            ranges[count++] = offset;
+            ranges[count++] = Math.min(size, (long) end * Frames.FILE_CHUNK_SIZE) - offset;
+            start = verified.nextClearBit(end);
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the manifest once its file is complete.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
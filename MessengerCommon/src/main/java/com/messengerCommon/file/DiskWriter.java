@@ -0,0 +1,256 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.Frames;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A background thread that does the disk work of incoming files, so that network readers never
+ * wait for the disk or for fsync. Tasks run one at a time in the order they were submitted, which
+ * keeps the writes of one file in order.
+ * <p>
+ * The queue is bounded by the bytes it holds. A reader that may block waits in
+ * {@link #execute} until there is room, which in turn stops it reading from its socket. A reader
+ * that must not block, such as the selector thread, submits anyway and checks
+ * {@link #isSaturated()} before its next read, pausing until {@link #whenDrained} calls back.
+ * Chunk copies come from a pool of direct buffers sized to {@link Frames#FILE_CHUNK_SIZE}.
+ * <p>
+ * Forcing a finished file to disk can take as long as writing it did, so that runs on a second
+ * thread through {@link #sync}: a queue stuck behind an fsync would stall the readers waiting for
+ * room just as surely as an fsync on their own thread.
+ */
+public class DiskWriter implements Closeable {
+    public static final long DEFAULT_BUDGET_BYTES = 16L * 1024 * 1024;
+    /** What a task without a chunk counts against the budget. */
+    private static final int TASK_OVERHEAD = 1024;
+    private static final Logger logger = Logger.getLogger(DiskWriter.class.getName());
+
+    /**
+     * Disk work to run on the writer thread.
+     */
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    private record Entry(Task task, long bytes) {
+    }
+
+    private final long budget;
+    private final int maxPooledBuffers;
+    private final Thread thread;
+    private final ExecutorService syncExecutor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Queue<Entry> tasks = new ArrayDeque<>();
+    private final Queue<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final List<Runnable> drainCallbacks = new ArrayList<>();
+    private long pendingBytes;
+    private boolean closed;
+
+    public DiskWriter(String threadName) {
+        this(threadName, DEFAULT_BUDGET_BYTES);
+    }
+
+    public DiskWriter(String threadName, long budget) {
+        this.budget = budget;
+        this.maxPooledBuffers = (int) Math.max(1, budget / Frames.FILE_CHUNK_SIZE);
+        this.thread = new Thread(this::runTasks, threadName);
+        thread.setDaemon(true);
+        thread.start();
+        this.syncExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread syncThread = new Thread(runnable, threadName + "-sync");
+            syncThread.setDaemon(true);
+            return syncThread;
+        });
+    }
+
+    /**
+     * Copies a chunk out of the reader's buffer so it can be written later. Give the copy back
+     * with {@link #release} once it has been written.
+     */
+    public ByteBuffer copyOf(ByteBuffer content) {
+        ByteBuffer copy = null;
+        if (content.remaining() <= Frames.FILE_CHUNK_SIZE) {
+            lock.lock();
+            try {
+                copy = bufferPool.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (copy == null) {
+            copy = ByteBuffer.allocateDirect(Math.max(Frames.FILE_CHUNK_SIZE, content.remaining()));
+        }
+        copy.clear();
+        copy.put(content.duplicate()).flip();
+        return copy;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != Frames.FILE_CHUNK_SIZE) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (bufferPool.size() < maxPooledBuffers) {
+                bufferPool.add(buffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a task that holds {@code bytes} of chunk data.
+     *
+     * @param waitForRoom whether to block while the queue is over its budget; a caller that
+     *                    passes false must respect {@link #isSaturated()} itself.
+     */
+    public void execute(Task task, long bytes, boolean waitForRoom) throws IOException {
+        long cost = bytes + TASK_OVERHEAD;
+        lock.lock();
+        try {
+            while (waitForRoom && !closed && pendingBytes > 0 && pendingBytes + cost > budget) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IOException("Disk writer is closed");
+            }
+            pendingBytes += cost;
+            tasks.add(new Entry(task, cost));
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the disk writer", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a task outside the queue, after the tasks of previous {@code sync} calls. Meant for the
+     * last step of a file, when nothing else will be queued for it.
+     */
+    public void sync(Task task) {
+        try {
+            syncExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Disk sync failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Disk writer is closed, dropping a sync task");
+        }
+    }
+
+    /**
+     * @return true while the queue holds at least its budget; readers that do not block in
+     * {@link #execute} should stop reading file data until {@link #whenDrained} calls back.
+     */
+    public boolean isSaturated() {
+        lock.lock();
+        try {
+            return pendingBytes >= budget;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the callback once the queue has drained to half its budget, on the writer thread, or
+     * right away on the calling thread if it already has.
+     */
+    public void whenDrained(Runnable callback) {
+        lock.lock();
+        try {
+            if (pendingBytes > budget / 2) {
+                drainCallbacks.add(callback);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        callback.run();
+    }
+
+    private void runTasks() {
+        while (true) {
+            Entry entry;
+            lock.lock();
+            try {
+                while (tasks.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    notEmpty.await();
+                }
+                entry = tasks.poll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                entry.task().run();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Disk write failed", e);
+            }
+            finished(entry.bytes());
+        }
+    }
+
+    private void finished(long cost) {
+        List<Runnable> callbacks = List.of();
+        lock.lock();
+        try {
+            pendingBytes -= cost;
+            notFull.signalAll();
+            if (pendingBytes <= budget / 2 && !drainCallbacks.isEmpty()) {
+                callbacks = new ArrayList<>(drainCallbacks);
+                drainCallbacks.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        callbacks.forEach(Runnable::run);
+    }
+
+    /**
+     * Runs the tasks already queued and the syncs they lead to, then stops both threads.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+            syncExecutor.shutdown();
+            syncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
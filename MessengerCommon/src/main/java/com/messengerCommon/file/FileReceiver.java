@@ -0,0 +1,455 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.jfr.FileReceiveEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives incoming file transfers, keyed by stream id. A file is written to a partial file at
+ * the offsets its chunks announce and moved to its final name once every chunk has arrived, so
+ * memory use does not depend on the file size. The partial file is named after the file, its
+ * sender and its fingerprint, {@code name.<sender>-<fingerprint>.part}, so uploads of the same
+ * name from different senders, or of different versions, never share one; a partial file another
+ * transfer in this process is still writing is never opened twice either. A finished file never
+ * replaces one already in the directory: it is saved as {@code name (1).ext} and so on instead.
+ * <p>
+ * Frames are validated on the reader's thread, but everything that touches the disk runs on the
+ * shared {@link DiskWriter}: the reader only copies each chunk into a pooled buffer. The disk
+ * space of the partial file is reserved when the transfer starts, and it is written according to
+ * the {@link FileWriteMode}. A file larger than the receiver's limit is refused: its chunks are
+ * read and dropped, and the connection carries on. So is one larger than the free space left on
+ * the disk, counting the space other transfers are still reserving. Once complete, a file is
+ * forced to disk on the writer's sync thread before it is renamed and the listener is told, so
+ * neither readers nor the write queue wait for fsync.
+ * <p>
+ * Beside each partial file a {@link ChunkManifest} in {@code <partial file>.manifest} records the
+ * chunks written so far with their CRC32C. Both are kept when a connection drops, and when the
+ * same file is announced again the receiver verifies what it has and asks the sender for the
+ * missing ranges only. One instance belongs to one connection, which may send at most
+ * {@value #MAX_INCOMING_FILES} files at once; listener methods are called on the writer's threads.
+ * <p>
+ * Every transfer is a {@link FileReceiveEvent} for Flight Recorder, from its start frame until
+ * the file is saved or given up.
+ */
+public class FileReceiver implements Closeable {
+
+    public interface Listener {
+        void onFile(String fileName, Path file) throws IOException;
+
+        /**
+         * Part of the announced file is already on disk: the sender should be asked for the
+         * given ranges only.
+         *
+         * @param missingRanges offset and length pairs.
+         */
+        void onResumable(long streamId, long[] missingRanges) throws IOException;
+    }
+
+    public static final int MAX_RESUME_RANGES = 4096;
+    /** How many files one connection may be sending at the same time. */
+    public static final int MAX_INCOMING_FILES = 16;
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+    public static final long MAPPED_THRESHOLD = 64L * 1024 * 1024;
+    private static final long MAPPED_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    /** The partial files being written by every receiver of this process. */
+    private static final Set<Path> PART_FILES_IN_USE = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong NEXT_UNIQUE_PART = new AtomicLong(1);
+    /** Held while choosing the name of a finished file, so two of them never pick the same one. */
+    private static final Object SAVE_LOCK = new Object();
+    private static final Object RESERVATION_LOCK = new Object();
+    /** Bytes that transfers of this process have claimed but not written out yet. */
+    private static long reservingBytes;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(Frames.FILE_CHUNK_SIZE).asReadOnlyBuffer();
+    private static final Logger logger = Logger.getLogger(FileReceiver.class.getName());
+
+    /**
+     * One transfer. The name and size are fixed on the reader's thread; the remaining fields
+     * belong to the writer thread.
+     */
+    private final class IncomingFile {
+        private final long streamId;
+        private final String fileName;
+        private final Path partFile;
+        private final long size;
+        private final long fingerprint;
+        private FileChannel channel;
+        private ChunkManifest manifest;
+        private boolean mapped;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private boolean failed;
+        /** Set on the reader's thread when the file is too large to accept at all. */
+        private boolean refused;
+        private final FileReceiveEvent event = new FileReceiveEvent();
+        private boolean recorded;
+
+        private IncomingFile(long streamId, String fileName, long size, long fingerprint) {
+            this.streamId = streamId;
+            this.fileName = fileName;
+            this.partFile = claimPartFile(fileName, fingerprint);
+            this.size = size;
+            this.fingerprint = fingerprint;
+            event.begin();
+        }
+
+        /**
+         * Ends the transfer's event the first time it is called, from whichever thread saw the
+         * transfer end.
+         */
+        private synchronized void record(boolean completed) {
+            if (recorded) {
+                return;
+            }
+            recorded = true;
+            event.end();
+            if (event.shouldCommit()) {
+                event.sessionId = sessionId;
+                event.streamId = streamId;
+                event.fileName = fileName;
+                event.size = size;
+                event.completed = completed;
+                event.commit();
+            }
+        }
+
+        private void open(Listener listener) throws IOException {
+            long needed = Math.max(0, size - (Files.exists(partFile) ? Files.size(partFile) : 0));
+            long usable = Files.getFileStore(directory.toAbsolutePath()).getUsableSpace();
+            synchronized (RESERVATION_LOCK) {
+                if (needed > usable - reservingBytes) {
+                    throw new IOException(fileName + " needs " + needed + " more bytes but only "
+                            + (usable - reservingBytes) + " are free");
+                }
+                reservingBytes += needed;
+            }
+            try {
+                channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                manifest = ChunkManifest.open(partFile.resolveSibling(partFile.getFileName() + MANIFEST_SUFFIX),
+                        channel, size, fingerprint);
+                reserveSpace();
+            } finally {
+                // written out now, or given up: either way the free space is accurate again
+                synchronized (RESERVATION_LOCK) {
+                    reservingBytes -= needed;
+                }
+            }
+            mapped = writeMode == FileWriteMode.MAPPED && size >= MAPPED_THRESHOLD;
+            if (manifest.getVerifiedCount() > 0) {
+                listener.onResumable(streamId, manifest.missingRanges(size, MAX_RESUME_RANGES));
+            }
+        }
+
+        /**
+         * Writes zeros from the end of the partial file to its announced size, so a disk that
+         * fills up fails the transfer here rather than partway through it, and mapped writes
+         * never land on blocks that were never allocated. Only writing the blocks reserves them:
+         * setting the length alone would make a sparse file. The price is writing the new part
+         * of the file twice.
+         */
+        private void reserveSpace() throws IOException {
+            ByteBuffer zeros = ZEROS.duplicate();
+            for (long position = channel.size(); position < size; ) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+                while (zeros.hasRemaining()) {
+                    position += channel.write(zeros, position);
+                }
+            }
+        }
+
+        private void write(long offset, ByteBuffer chunk) throws IOException {
+            if (mapped) {
+                if (window == null || offset < windowStart || offset >= windowStart + window.capacity()) {
+                    windowStart = offset - offset % MAPPED_WINDOW_SIZE;
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart,
+                            Math.min(MAPPED_WINDOW_SIZE, size - windowStart));
+                }
+                window.put((int) (offset - windowStart), chunk, chunk.position(), chunk.remaining());
+            } else {
+                ByteBuffer content = chunk.duplicate();
+                long position = offset;
+                while (content.hasRemaining()) {
+                    position += channel.write(content, position);
+                }
+            }
+            manifest.record((int) (offset / Frames.FILE_CHUNK_SIZE), chunk);
+        }
+
+        private void finish(Listener listener) throws IOException {
+            if (!manifest.isComplete()) {
+                logger.warning(fileName + " on stream " + streamId + " ended with " + manifest.getVerifiedCount()
+                        + " of " + ChunkManifest.chunkCount(size) + " chunks; keeping the partial file");
+                record(false);
+                close();
+                return;
+            }
+            window = null;
+            diskWriter.sync(() -> {
+                try {
+                    channel.force(false);
+                } finally {
+                    close();
+                }
+                manifest.delete();
+                Path saved = save();
+                record(true);
+                listener.onFile(fileName, saved);
+            });
+        }
+
+        /**
+         * Moves the complete file to its name, or the first numbered variant of it that is free.
+         */
+        private Path save() throws IOException {
+            synchronized (SAVE_LOCK) {
+                for (int copy = 0; ; copy++) {
+                    Path target = directory.resolve(copy == 0 ? fileName : numbered(fileName, copy));
+                    try {
+                        return Files.move(partFile, target);
+                    } catch (FileAlreadyExistsException e) {
+                        // keep that one and try the next name
+                    }
+                }
+            }
+        }
+
+        private void close() throws IOException {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                PART_FILES_IN_USE.remove(partFile);
+                if (manifest != null) {
+                    manifest.close();
+                }
+            }
+        }
+    }
+
+    private final Path directory;
+    private final DiskWriter diskWriter;
+    private final FileWriteMode writeMode;
+    private final boolean waitForDisk;
+    private final long maxFileSize;
+    private final long sessionId;
+    private final Supplier<String> sender;
+    private final Map<Long, IncomingFile> incomingFiles = new HashMap<>();
+
+    /**
+     * @param waitForDisk whether the reader blocks while the disk writer is over its budget;
+     *                    readers that must not block check {@link #isBackedUp()} instead.
+     */
+    public FileReceiver(Path directory, DiskWriter diskWriter, FileWriteMode writeMode, boolean waitForDisk) {
+        this(directory, diskWriter, writeMode, waitForDisk, DEFAULT_MAX_FILE_SIZE, 0, () -> "");
+    }
+
+    /**
+     * @param maxFileSize the largest file accepted, in bytes.
+     * @param sessionId identifies the connection in Flight Recorder events.
+     * @param sender    who sends the files, asked when each transfer starts; only the partial
+     *                  files of the same sender are resumed.
+     */
+    public FileReceiver(Path directory, DiskWriter diskWriter, FileWriteMode writeMode, boolean waitForDisk,
+                        long maxFileSize, long sessionId, Supplier<String> sender) {
+        this.directory = directory;
+        this.diskWriter = diskWriter;
+        this.writeMode = writeMode;
+        this.waitForDisk = waitForDisk;
+        this.maxFileSize = maxFileSize;
+        this.sessionId = sessionId;
+        this.sender = sender;
+    }
+
+    /**
+     * Handles one of the {@code FILE_*} frames.
+     */
+    public synchronized void onFrame(FrameType type, long streamId, ByteBuffer payload, Listener listener) throws IOException {
+        switch (type) {
+            case FILE_START -> {
+                long size = Frames.readFileSize(payload);
+                if (size < 0 || ChunkManifest.chunkCount(size) > Integer.MAX_VALUE) {
+                    throw new ProtocolException("Unsupported file size: " + size);
+                }
+                long fingerprint = Frames.readFileFingerprint(payload);
+                if (incomingFiles.containsKey(streamId)) {
+                    throw new ProtocolException("Stream " + streamId + " is already in use");
+                }
+                if (incomingFiles.size() >= MAX_INCOMING_FILES) {
+                    throw new ProtocolException("More than " + MAX_INCOMING_FILES + " files at once");
+                }
+                IncomingFile file = new IncomingFile(streamId, sanitize(Frames.readText(payload), streamId), size, fingerprint);
+                incomingFiles.put(streamId, file);
+                if (size > maxFileSize) {
+                    logger.warning("Refusing " + file.fileName + " on stream " + streamId + ": " + size
+                            + " bytes is more than the " + maxFileSize + " allowed");
+                    file.refused = true;
+                    file.record(false);
+                } else {
+                    submit(file, 0, () -> file.open(listener));
+                }
+            }
+            case FILE_CHUNK -> {
+                IncomingFile file = incomingFile(streamId);
+                long offset = Frames.readChunkOffset(payload);
+                if (offset < 0 || offset >= file.size || offset % Frames.FILE_CHUNK_SIZE != 0
+                        || payload.remaining() != Math.min(Frames.FILE_CHUNK_SIZE, file.size - offset)) {
+                    throw new ProtocolException("Chunk at " + offset + " of " + payload.remaining()
+                            + " bytes does not fit the " + file.size + " bytes of stream " + streamId);
+                }
+                if (file.refused) {
+                    payload.position(payload.limit());
+                } else {
+                    ByteBuffer chunk = diskWriter.copyOf(payload);
+                    payload.position(payload.limit());
+                    submit(file, chunk.remaining(), () -> {
+                        try {
+                            file.write(offset, chunk);
+                        } finally {
+                            diskWriter.release(chunk);
+                        }
+                    });
+                }
+            }
+            case FILE_END -> {
+                IncomingFile file = incomingFile(streamId);
+                incomingFiles.remove(streamId);
+                submit(file, 0, file.refused ? file::close : () -> file.finish(listener));
+            }
+            default -> throw new IllegalArgumentException("Not a file frame: " + type);
+        }
+    }
+
+    /**
+     * Queues disk work for a file. Once one step of a file fails the rest of it is skipped and
+     * its partial file is left for a later transfer to resume.
+     */
+    private void submit(IncomingFile file, long bytes, DiskWriter.Task task) throws IOException {
+        diskWriter.execute(() -> {
+            if (file.failed) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                file.failed = true;
+                logger.log(Level.WARNING, "Could not write " + file.fileName, e);
+                file.record(false);
+                file.close();
+            }
+        }, bytes, waitForDisk);
+    }
+
+    private IncomingFile incomingFile(long streamId) throws ProtocolException {
+        IncomingFile file = incomingFiles.get(streamId);
+        if (file == null) {
+            throw new ProtocolException("No file transfer on stream " + streamId);
+        }
+        return file;
+    }
+
+    /**
+     * @return true when a file is arriving and the disk writer is over its budget; a reader that
+     * does not wait for the disk should stop reading until {@link #whenDrained} calls back.
+     */
+    public synchronized boolean isBackedUp() {
+        return !incomingFiles.isEmpty() && diskWriter.isSaturated();
+    }
+
+    /**
+     * @return the number of files that have started arriving and not ended yet.
+     */
+    public synchronized int getIncomingFileCount() {
+        return incomingFiles.size();
+    }
+
+    public void whenDrained(Runnable callback) {
+        diskWriter.whenDrained(callback);
+    }
+
+    /**
+     * Picks the partial file of a transfer and marks it as in use until the transfer closes it.
+     * The sender is hashed, since it is whatever id the peer chose. When another transfer of this
+     * process already writes to that file, this one gets a name of its own and starts afresh.
+     */
+    private Path claimPartFile(String fileName, long fingerprint) {
+        String key = String.format("%08x-%016x", Arrays.hashCode(sender.get().getBytes(StandardCharsets.UTF_8)),
+                fingerprint);
+        Path partFile = directory.resolve(fileName + "." + key + PART_SUFFIX).toAbsolutePath().normalize();
+        while (!PART_FILES_IN_USE.add(partFile)) {
+            partFile = partFile.resolveSibling(fileName + "." + key + "." + NEXT_UNIQUE_PART.getAndIncrement()
+                    + PART_SUFFIX);
+        }
+        return partFile;
+    }
+
+    /**
+     * @return {@code name (copy).ext}, or {@code name (copy)} when the name has no extension.
+     */
+    static String numbered(String fileName, int copy) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0
+                ? fileName.substring(0, dot) + " (" + copy + ")" + fileName.substring(dot)
+                : fileName + " (" + copy + ")";
+    }
+
+    /**
+     * Keeps only the last path element of the name the peer sent, so a transfer can never
+     * write outside the download directory.
+     */
+    private static String sanitize(String fileName, long streamId) {
+        String sanitized;
+        try {
+            Path name = Path.of(fileName.replace('\\', '/')).getFileName();
+            sanitized = name == null ? "" : name.toString();
+        } catch (InvalidPathException e) {
+            sanitized = "";
+        }
+        if (sanitized.isBlank() || sanitized.equals("..") || sanitized.equals(".")) {
+            return "file-" + streamId;
+        }
+        return sanitized;
+    }
+
+    /**
+     * Stops every unfinished transfer once the chunks already received are on disk. Its partial
+     * file and manifest stay there, so the next transfer of the same file only needs the
+     * missing chunks.
+     */
+    @Override
+    public synchronized void close() {
+        for (IncomingFile file : incomingFiles.values()) {
+            file.record(false);
+            try {
+                diskWriter.execute(file::close, 0, false);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Could not close " + file.fileName, e);
+            }
+        }
+        incomingFiles.clear();
+    }
+}
@@ -0,0 +1,320 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.FrameCodec;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.jfr.FileSendEvent;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Produces the frames of one outgoing file, a chunk at a time. There are two ways to drive a
+ * transfer, and one transfer must only ever be driven one way:
+ * <ul>
+ *     <li>{@link #writeFrameTo} sends each chunk with {@link FileChannel#transferTo}, so on a
+ *     socket channel the content goes from the page cache to the socket without being copied
+ *     into the Java heap.</li>
+ *     <li>{@link #nextFrame} reads each chunk into a heap buffer, for targets that are only
+ *     available as a stream. Every chunk frame is built in the same buffer, so the caller must be
+ *     done with a frame before asking for the next one.</li>
+ * </ul>
+ * Either way a transfer holds at most one chunk in memory however large the file is. Chunks
+ * always start at a multiple of {@link Frames#FILE_CHUNK_SIZE}.
+ * <p>
+ * A receiver that already holds part of the file answers the start frame with the ranges it is
+ * missing; passing them to {@link #resume} from any thread limits the rest of the transfer to
+ * those ranges.
+ * <p>
+ * A transfer closes itself once its end frame has been written completely by {@link #writeFrameTo},
+ * or when {@link #nextFrame} is called again after returning it. That ends its
+ * {@link FileSendEvent} for Flight Recorder; closing it earlier records an unfinished send.
+ */
+public class FileTransfer implements Closeable {
+    private static final int FALLBACK_COPY_SIZE = 16 * 1024;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private enum State {START, CHUNKS, DONE}
+
+    private final long streamId;
+    private final String fileName;
+    private final FileChannel channel;
+    private final long size;
+    private final long fingerprint;
+    private final long sessionId;
+    private final FileSendEvent event = new FileSendEvent();
+    private ByteBuffer chunkFrame;
+    private ByteBuffer chunkHeader;
+    private ByteBuffer fallbackCopy;
+    private ByteBuffer pendingHeader;
+    private long regionPosition;
+    private long regionRemaining;
+    private long offset;
+    private long bytesSent;
+    private long[] requestedRanges;
+    private int rangeIndex;
+    private State state = State.START;
+
+    public FileTransfer(long streamId, String fileName, Path file) throws IOException {
+        this(streamId, fileName, file, 0);
+    }
+
+    /**
+     * @param sessionId identifies the connection in the {@link FileSendEvent}.
+     */
+    public FileTransfer(long streamId, String fileName, Path file, long sessionId) throws IOException {
+        this.streamId = streamId;
+        this.fileName = fileName;
+        this.sessionId = sessionId;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.fingerprint = fingerprint(fileName, size, Files.getLastModifiedTime(file).toMillis());
+        event.begin();
+    }
+
+    /**
+     * Identifies this version of the file: a receiver only resumes into a partial copy with the
+     * same name and fingerprint. The hash is 64-bit FNV-1a over the UTF-8 name followed by the
+     * size and modification time; unlike a 31-multiplier string hash, names such as {@code Aa}
+     * and {@code BB} do not collide.
+     */
+    static long fingerprint(String fileName, long size, long lastModified) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        for (long value : new long[]{size, lastModified}) {
+            for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+                hash = (hash ^ ((value >>> shift) & 0xFF)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Sends only the given byte ranges from now on, skipping chunks that were already sent.
+     *
+     * @param missingRanges offset and length pairs in ascending order, as the receiver sent them.
+     */
+    public synchronized void resume(long[] missingRanges) {
+        requestedRanges = missingRanges;
+        rangeIndex = 0;
+    }
+
+    /**
+     * @return the offset of the next chunk to send, or -1 when every requested chunk has been sent.
+     */
+    private synchronized long nextChunkOffset() {
+        long chunkOffset = offset < size ? offset : -1;
+        if (requestedRanges != null) {
+            chunkOffset = -1;
+            while (rangeIndex < requestedRanges.length) {
+                long start = requestedRanges[rangeIndex];
+                long end = Math.min(size, start + requestedRanges[rangeIndex + 1]);
+                long aligned = Math.max(offset, start - start % Frames.FILE_CHUNK_SIZE);
+                if (aligned < end) {
+                    chunkOffset = aligned;
+                    break;
+                }
+                rangeIndex += 2;
+            }
+        }
+        if (chunkOffset >= 0) {
+            offset = chunkOffset + chunkLength(chunkOffset);
+            bytesSent += chunkLength(chunkOffset);
+        }
+        return chunkOffset;
+    }
+
+    private int chunkLength(long chunkOffset) {
+        return (int) Math.min(Frames.FILE_CHUNK_SIZE, size - chunkOffset);
+    }
+
+    /**
+     * @return true once the end frame has been produced and, when driven by
+     * {@link #writeFrameTo}, completely written.
+     */
+    public boolean isDone() {
+        return state == State.DONE && pendingHeader == null && regionRemaining == 0;
+    }
+
+    /**
+     * Writes the next frame, or continues the one a previous call could not finish, straight to
+     * the channel. A non-blocking channel may accept only part of a frame; call again once it is
+     * writable. A blocking channel always takes the whole frame.
+     *
+     * @return true when a frame has been written completely or the transfer is done, false when
+     * the channel stopped accepting bytes.
+     */
+    public boolean writeFrameTo(WritableByteChannel target) throws IOException {
+        if (pendingHeader == null && regionRemaining == 0 && !prepareFrame()) {
+            return true;
+        }
+        if (pendingHeader != null) {
+            target.write(pendingHeader);
+            if (pendingHeader.hasRemaining()) {
+                return false;
+            }
+            pendingHeader = null;
+        }
+        while (regionRemaining > 0) {
+            long written = channel.transferTo(regionPosition, regionRemaining, target);
+            if (written == 0) {
+                if (regionPosition >= channel.size()) {
+                    throw new EOFException(fileName + " became shorter than " + size + " bytes while being sent");
+                }
+                if (target instanceof SelectableChannel selectable && !selectable.isBlocking()) {
+                    return false;
+                }
+                written = copyRegion(target);
+            }
+            regionPosition += written;
+            regionRemaining -= written;
+        }
+        if (isDone()) {
+            close();
+        }
+        return true;
+    }
+
+    /**
+     * Sends the next part of the region through a heap buffer. A blocking socket channel used from
+     * a virtual thread is non-blocking underneath, and {@code transferTo} returns without writing
+     * anything when the send buffer is full instead of waiting; an ordinary write does wait.
+     */
+    private long copyRegion(WritableByteChannel target) throws IOException {
+        if (fallbackCopy == null) {
+            fallbackCopy = ByteBuffer.allocate(FALLBACK_COPY_SIZE);
+        }
+        fallbackCopy.clear().limit((int) Math.min(FALLBACK_COPY_SIZE, regionRemaining));
+        int read = channel.read(fallbackCopy, regionPosition);
+        if (read <= 0) {
+            throw new EOFException(fileName + " became shorter than " + size + " bytes while being sent");
+        }
+        fallbackCopy.flip();
+        while (fallbackCopy.hasRemaining()) {
+            target.write(fallbackCopy);
+        }
+        return read;
+    }
+
+    private boolean prepareFrame() throws IOException {
+        switch (state) {
+            case START -> {
+                state = State.CHUNKS;
+                pendingHeader = Frames.fileStart(streamId, size, fingerprint, fileName);
+            }
+            case CHUNKS -> {
+                long chunkOffset = nextChunkOffset();
+                if (chunkOffset < 0) {
+                    pendingHeader = finish();
+                    break;
+                }
+                if (chunkHeader == null) {
+                    chunkHeader = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH + Frames.CHUNK_OFFSET_LENGTH);
+                }
+                int length = chunkLength(chunkOffset);
+                chunkHeader.clear();
+                Frames.putFileChunkHeader(chunkHeader, streamId, chunkOffset, length);
+                pendingHeader = chunkHeader.flip();
+                regionPosition = chunkOffset;
+                regionRemaining = length;
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the next frame to write, or null once the end frame has been returned, which
+     * means it has been written and closes the transfer.
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        switch (state) {
+            case START -> {
+                state = State.CHUNKS;
+                return Frames.fileStart(streamId, size, fingerprint, fileName);
+            }
+            case CHUNKS -> {
+                long chunkOffset = nextChunkOffset();
+                return chunkOffset < 0 ? finish() : chunkFrame(chunkOffset);
+            }
+            default -> {
+                close();
+                return null;
+            }
+        }
+    }
+
+    private ByteBuffer finish() {
+        state = State.DONE;
+        return Frames.fileEnd(streamId);
+    }
+
+    private ByteBuffer chunkFrame(long chunkOffset) throws IOException {
+        if (chunkFrame == null) {
+            chunkFrame = ByteBuffer.allocate(Frames.maxFileChunkFrameLength(streamId));
+        }
+        int length = chunkLength(chunkOffset);
+        chunkFrame.clear();
+        Frames.putFileChunkHeader(chunkFrame, streamId, chunkOffset, length);
+        chunkFrame.limit(chunkFrame.position() + length);
+        long position = chunkOffset;
+        while (chunkFrame.hasRemaining()) {
+            int read = channel.read(chunkFrame, position);
+            if (read < 0) {
+                throw new EOFException(fileName + " became shorter than " + size + " bytes while being sent");
+            }
+            position += read;
+        }
+        return chunkFrame.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            recordSend();
+        }
+        channel.close();
+    }
+
+    private void recordSend() {
+        event.end();
+        if (event.shouldCommit()) {
+            event.sessionId = sessionId;
+            event.streamId = streamId;
+            event.fileName = fileName;
+            event.size = size;
+            event.bytesSent = getBytesSent();
+            event.completed = isDone();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.messengerCommon.file;
+
+/**
+ * How a {@link FileReceiver} writes chunks to disk.
+ */
+public enum FileWriteMode {
+    /** Positional {@code FileChannel} writes from the chunk buffer. */
+    CHANNEL,
+    /**
+     * Files of at least {@link FileReceiver#MAPPED_THRESHOLD} bytes are written through
+     * {@code MappedByteBuffer} windows; smaller ones as with {@link #CHANNEL}. A mapping is only
+     * released by the garbage collector, which on Windows can hold up renaming the finished file.
+     */
+    MAPPED;
+
+    public static FileWriteMode parse(String value) {
+        if (value == null || value.isBlank()) {
+            return CHANNEL;
+        }
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,37 @@
+package com.messengerCommon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One incoming file, lasting from its start frame to the file being forced to disk under its
+ * final name, or to the transfer being given up with its partial file kept for resuming.
+ */
+@Name("com.messenger.FileReceive")
+@Label("File Receive")
+@Category({"Messenger", "Files"})
+@Description("A file received from the peer and saved")
+@StackTrace(false)
+public class FileReceiveEvent extends Event {
+    @Label("Session Id")
+    @Description("The server's number for the session, or the client's number for its connection")
+    public long sessionId;
+
+    @Label("Stream Id")
+    public long streamId;
+
+    @Label("File Name")
+    public String fileName;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Completed")
+    public boolean completed;
+}
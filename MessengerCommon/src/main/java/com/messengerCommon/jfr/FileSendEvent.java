@@ -0,0 +1,42 @@
+package com.messengerCommon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One outgoing file, lasting from its transfer being opened, which may be a while before its
+ * first chunk goes out, until its end frame has been written or the transfer is given up.
+ */
+@Name("com.messenger.FileSend")
+@Label("File Send")
+@Category({"Messenger", "Files"})
+@Description("A file sent to the peer")
+@StackTrace(false)
+public class FileSendEvent extends Event {
+    @Label("Session Id")
+    @Description("The server's number for the session, or the client's number for its connection")
+    public long sessionId;
+
+    @Label("Stream Id")
+    public long streamId;
+
+    @Label("File Name")
+    public String fileName;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Bytes Sent")
+    @Description("File content sent, which is less than the size when the peer already held part of it")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Completed")
+    public boolean completed;
+}
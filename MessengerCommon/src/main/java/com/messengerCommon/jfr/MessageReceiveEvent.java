@@ -0,0 +1,34 @@
+package com.messengerCommon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * One text message received, lasting while it is decoded, before it is handed to the
+ * application. Only messages slower than the threshold are recorded by default.
+ */
+@Name("com.messenger.MessageReceive")
+@Label("Message Receive")
+@Category({"Messenger", "Messages"})
+@Description("A text message decoded from its frame")
+@StackTrace(false)
+@Threshold("10 ms")
+public class MessageReceiveEvent extends Event {
+    @Label("Session Id")
+    @Description("The server's number for the session, or the client's number for its connection")
+    public long sessionId;
+
+    @Label("Sequence")
+    @Description("The message's id in the server's log, or the sender's own number for it, or -1")
+    public long sequence;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
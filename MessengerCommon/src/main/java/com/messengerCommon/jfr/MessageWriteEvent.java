@@ -0,0 +1,35 @@
+package com.messengerCommon.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * One write of queued frames to a connection, lasting from the start of the write to the
+ * socket having taken the last byte. Mostly messages, with whatever pings, pongs and
+ * acknowledgements went out with them. Only writes slower than the threshold are recorded by
+ * default, which a recording's settings can lower to zero to see every one.
+ */
+@Name("com.messenger.MessageWrite")
+@Label("Message Write")
+@Category({"Messenger", "Messages"})
+@Description("Frames written to a connection in one go")
+@StackTrace(false)
+@Threshold("10 ms")
+public class MessageWriteEvent extends Event {
+    @Label("Session Id")
+    @Description("The server's number for the session, or the client's number for its connection")
+    public long sessionId;
+
+    @Label("Frames")
+    public int frames;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,70 @@
+package com.messengerCommon.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+import java.util.Map;
+
+/**
+ * Shows a {@link MetricsRegistry} to JMX tools such as JConsole, one read-only attribute of type
+ * {@code long} per entry of its {@link MetricsRegistry#snapshot()}. The attributes are listed
+ * afresh every time the tool asks, so a session's queue depth appears and disappears with it.
+ */
+final class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+    private final String description;
+
+    MetricsMBean(MetricsRegistry registry, String description) {
+        this.registry = registry;
+        this.description = description;
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Long value = registry.snapshot().get(name);
+        if (value == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Long> snapshot = registry.snapshot();
+        AttributeList attributes = new AttributeList();
+        for (String name : names) {
+            Long value = snapshot.get(name);
+            if (value != null) {
+                attributes.add(new Attribute(name, value));
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = registry.snapshot().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(MetricsMBean.class.getName(), description, attributes, null, null, null);
+    }
+}
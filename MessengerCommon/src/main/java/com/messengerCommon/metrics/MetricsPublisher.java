@@ -0,0 +1,126 @@
+package com.messengerCommon.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes a {@link MetricsRegistry} readable from outside the process: always as an MBean named
+ * {@code com.messenger:type=<type>} in the platform MBean server, and, given a port, as
+ * {@code http://127.0.0.1:<port>/metrics} in the Prometheus text format. The HTTP endpoint only
+ * listens on the loopback interface; anything further away should scrape through a proxy or
+ * use JMX with its own security.
+ * <p>
+ * The metrics are only computed when they are read, by the JMX client's thread or the single
+ * thread of the HTTP server, so publishing them costs nothing between reads.
+ */
+public final class MetricsPublisher implements Closeable {
+    /** Passed as the port when the metrics should only be published over JMX. */
+    public static final int NO_HTTP = -1;
+    private static final String DOMAIN = "com.messenger";
+    private static final String PATH = "/metrics";
+    private static final Logger logger = Logger.getLogger(MetricsPublisher.class.getName());
+
+    private final ObjectName objectName;
+    private final HttpServer httpServer;
+
+    private MetricsPublisher(ObjectName objectName, HttpServer httpServer) {
+        this.objectName = objectName;
+        this.httpServer = httpServer;
+    }
+
+    /**
+     * @param type     what the process is, such as {@code Server}; a second registry of the same
+     *                 type in one process gets an {@code instance} key in its name.
+     * @param httpPort the loopback port to serve the text format on, 0 for any free one, or
+     *                 {@link #NO_HTTP}.
+     */
+    public static MetricsPublisher start(MetricsRegistry registry, String type, int httpPort) throws IOException {
+        ObjectName objectName = registerMBean(registry, type);
+        if (httpPort == NO_HTTP) {
+            return new MetricsPublisher(objectName, null);
+        }
+        HttpServer httpServer;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+        } catch (IOException e) {
+            unregisterMBean(objectName);
+            throw e;
+        }
+        httpServer.createContext(PATH, exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = registry.toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        httpServer.start();
+        logger.info("Metrics available at http://" + httpServer.getAddress().getHostString() + ":"
+                + httpServer.getAddress().getPort() + PATH);
+        return new MetricsPublisher(objectName, httpServer);
+    }
+
+    private static ObjectName registerMBean(MetricsRegistry registry, String type) {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        MetricsMBean mBean = new MetricsMBean(registry, "Messenger " + type.toLowerCase() + " metrics");
+        try {
+            for (int instance = 1; ; instance++) {
+                ObjectName name = new ObjectName(DOMAIN + ":type=" + type + (instance == 1 ? "" : ",instance=" + instance));
+                try {
+                    mBeanServer.registerMBean(mBean, name);
+                    return name;
+                } catch (InstanceAlreadyExistsException e) {
+                    // another registry of this type in the same process
+                }
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not publish the metrics over JMX", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMBean(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // already gone
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Could not unregister " + objectName, e);
+        }
+    }
+
+    /**
+     * @return the port the metrics are served on over HTTP, or {@link #NO_HTTP}.
+     */
+    public int getHttpPort() {
+        return httpServer == null ? NO_HTTP : httpServer.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        unregisterMBean(objectName);
+    }
+}
@@ -0,0 +1,145 @@
+package com.messengerCommon.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The named metrics of one application. Counters are {@link LongAdder}s and latencies
+ * {@link LatencyHistogram}s, both handed to the code that updates them, so recording never takes
+ * a lock or looks anything up; gauges are functions that are only called when the metrics are
+ * read. Names follow the Prometheus conventions: a {@code _total} suffix for counters and the
+ * unit for the rest.
+ * <p>
+ * {@link #toText()} writes everything in the Prometheus text format, histograms as summaries in
+ * seconds; {@link #snapshot()} flattens it into single numbers for JMX.
+ */
+public final class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private sealed interface Metric {
+        String help();
+    }
+
+    private record Counter(String help, LongAdder adder) implements Metric {
+    }
+
+    private record Gauge(String help, LongSupplier value) implements Metric {
+    }
+
+    private record GaugeFamily(String help, String label, Supplier<Map<String, Long>> values) implements Metric {
+    }
+
+    private record Histogram(String help, LatencyHistogram histogram) implements Metric {
+    }
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        register(name, new Counter(help, adder));
+        return adder;
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        register(name, new Gauge(help, value));
+    }
+
+    /**
+     * A gauge with one value per instance of something, such as a session, told apart by the
+     * given label.
+     */
+    public void gauges(String name, String help, String label, Supplier<Map<String, Long>> values) {
+        register(name, new GaugeFamily(help, label, values));
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        register(name, new Histogram(help, histogram));
+        return histogram;
+    }
+
+    private void register(String name, Metric metric) {
+        if (metrics.putIfAbsent(name, metric) != null) {
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format, in the order of their names.
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        metrics.forEach((name, metric) -> {
+            text.append("# HELP ").append(name).append(' ').append(metric.help()).append('\n');
+            switch (metric) {
+                case Counter counter -> {
+                    text.append("# TYPE ").append(name).append(" counter\n");
+                    text.append(name).append(' ').append(counter.adder().sum()).append('\n');
+                }
+                case Gauge gauge -> {
+                    text.append("# TYPE ").append(name).append(" gauge\n");
+                    text.append(name).append(' ').append(gauge.value().getAsLong()).append('\n');
+                }
+                case GaugeFamily family -> {
+                    text.append("# TYPE ").append(name).append(" gauge\n");
+                    family.values().get().forEach((instance, value) -> text.append(name)
+                            .append('{').append(family.label()).append("=\"").append(escape(instance)).append("\"} ")
+                            .append(value).append('\n'));
+                }
+                case Histogram histogram -> {
+                    LatencyHistogram latencies = histogram.histogram();
+                    text.append("# TYPE ").append(name).append(" summary\n");
+                    for (double quantile : QUANTILES) {
+                        text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                                .append(seconds(latencies.getValueAtPercentile(quantile * 100))).append('\n');
+                    }
+                    text.append(name).append("_sum ").append(seconds(latencies.getSumNanos())).append('\n');
+                    text.append(name).append("_count ").append(latencies.getCount()).append('\n');
+                }
+            }
+        });
+        return text.toString();
+    }
+
+    /**
+     * @return every metric as plain numbers, by name. A gauge with a label gives one entry per
+     * instance, named {@code name.instance}; a histogram gives its count, its maximum and its
+     * percentiles in nanoseconds, named {@code name.count}, {@code name.max}, {@code name.p50} up
+     * to {@code name.p999}.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        metrics.forEach((name, metric) -> {
+            switch (metric) {
+                case Counter counter -> values.put(name, counter.adder().sum());
+                case Gauge gauge -> values.put(name, gauge.value().getAsLong());
+                case GaugeFamily family -> family.values().get()
+                        .forEach((instance, value) -> values.put(name + "." + instance, value));
+                case Histogram histogram -> {
+                    LatencyHistogram latencies = histogram.histogram();
+                    values.put(name + ".count", latencies.getCount());
+                    values.put(name + ".max", latencies.getMaxNanos());
+                    for (int i = 0; i < QUANTILES.length; i++) {
+                        values.put(name + "." + PERCENTILE_NAMES[i], latencies.getValueAtPercentile(QUANTILES[i] * 100));
+                    }
+                }
+            }
+        });
+        return values;
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / NANOS_PER_SECOND);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
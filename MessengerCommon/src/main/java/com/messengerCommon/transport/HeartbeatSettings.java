@@ -0,0 +1,28 @@
+package com.messengerCommon.transport;
+
+/**
+ * How a connection that has gone quiet is told apart from one whose peer has vanished. A socket
+ * stays connected after the peer's machine or network has gone, so each side sends a
+ * {@link com.messengerCommon.codec.FrameType#PING} once it has heard nothing for
+ * {@code intervalMillis}, which a live peer answers, and gives the connection up once it has heard
+ * nothing for {@code timeoutMillis}.
+ */
+public record HeartbeatSettings(long intervalMillis, long timeoutMillis) {
+    public static final HeartbeatSettings DEFAULT = new HeartbeatSettings(15_000, 45_000);
+
+    public HeartbeatSettings {
+        if (intervalMillis <= 0 || timeoutMillis <= intervalMillis) {
+            throw new IllegalArgumentException("The heartbeat interval must be positive and shorter than the timeout");
+        }
+    }
+
+    /**
+     * Reads the settings from option values in milliseconds, either of which may be null to keep
+     * its default.
+     */
+    public static HeartbeatSettings parse(String intervalMillis, String timeoutMillis) {
+        return new HeartbeatSettings(
+                intervalMillis == null || intervalMillis.isBlank() ? DEFAULT.intervalMillis : Long.parseLong(intervalMillis.trim()),
+                timeoutMillis == null || timeoutMillis.isBlank() ? DEFAULT.timeoutMillis : Long.parseLong(timeoutMillis.trim()));
+    }
+}
@@ -0,0 +1,126 @@
+package com.messengerCommon.transport;
+
+import com.messengerCommon.codec.FrameCodec;
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.jfr.MessageReceiveEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Turns decoded frames into application events: text messages, completed files, pings, the
+ * greeting a client opens with and the server's acknowledgements.
+ * Incoming files are handed to the {@link FileReceiver} as their chunks arrive; an incoming
+ * file that was interrupted before is resumed by asking the sender for the missing ranges. One
+ * instance belongs to one connection, since it tracks that connection's file streams.
+ * <p>
+ * Each text message is a {@link MessageReceiveEvent} for Flight Recorder, covering its decoding
+ * only; the listener's handling of it is the application's to measure.
+ */
+public class MessageDispatcher implements FrameDecoder.Handler, Closeable {
+
+    public interface Listener {
+        /**
+         * @param sequence the id the server's log gave the message, or the sending client's own
+         *                 number for it, or -1 when it has none.
+         */
+        void onMessage(long sequence, String message) throws IOException;
+
+        void onFile(String fileName, Path file) throws IOException;
+
+        void onPing() throws IOException;
+
+        /**
+         * Should send {@link Frames#fileResume} for the incoming file on {@code streamId}.
+         */
+        void requestFileRanges(long streamId, long[] missingRanges) throws IOException;
+
+        /**
+         * The peer holds part of the file this side is sending on {@code streamId} and asks only
+         * for the given ranges; see {@link com.messengerCommon.file.FileTransfer#resume}.
+         */
+        void onFileRangesRequested(long streamId, long[] missingRanges) throws IOException;
+
+        /**
+         * A client introduced itself; see {@link FrameType#HELLO}.
+         */
+        void onHello(long resumeFrom, String clientId) throws IOException;
+
+        /**
+         * The server has logged every message this client sent up to {@code sequence}; see
+         * {@link FrameType#ACK}.
+         */
+        void onAcknowledged(long sequence) throws IOException;
+    }
+
+    private final Listener listener;
+    private final FileReceiver fileReceiver;
+    private final FileReceiver.Listener fileListener;
+    private final long sessionId;
+
+    public MessageDispatcher(Listener listener, FileReceiver fileReceiver) {
+        this(listener, fileReceiver, 0);
+    }
+
+    /**
+     * @param fileReceiver decides where and how incoming files are written.
+     * @param sessionId    identifies the connection in Flight Recorder events.
+     */
+    public MessageDispatcher(Listener listener, FileReceiver fileReceiver, long sessionId) {
+        this.listener = listener;
+        this.fileReceiver = fileReceiver;
+        this.sessionId = sessionId;
+        this.fileListener = new FileReceiver.Listener() {
+            @Override
+            public void onFile(String fileName, Path file) throws IOException {
+                listener.onFile(fileName, file);
+            }
+
+            @Override
+            public void onResumable(long streamId, long[] missingRanges) throws IOException {
+                listener.requestFileRanges(streamId, missingRanges);
+            }
+        };
+    }
+
+    @Override
+    public void onFrame(FrameType type, int flags, long streamId, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case MESSAGE -> {
+                MessageReceiveEvent event = new MessageReceiveEvent();
+                event.begin();
+                int bytes = payload.remaining();
+                long sequence = (flags & FrameCodec.FLAG_SEQUENCED) != 0 ? Frames.readSequence(payload) : -1;
+                String message = Frames.readText(payload);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.sessionId = sessionId;
+                    event.sequence = sequence;
+                    event.bytes = bytes;
+                    event.commit();
+                }
+                listener.onMessage(sequence, message);
+            }
+            case FILE_START, FILE_CHUNK, FILE_END -> fileReceiver.onFrame(type, streamId, payload, fileListener);
+            case FILE_RESUME -> listener.onFileRangesRequested(streamId, Frames.readRanges(payload));
+            case HELLO -> listener.onHello(Frames.readSequence(payload), Frames.readText(payload));
+            case ACK -> listener.onAcknowledged(Frames.readSequence(payload));
+            case PING -> listener.onPing();
+            case PONG -> {
+            }
+        }
+    }
+
+    /**
+     * Stops the transfers the connection did not finish, keeping their partial files for resuming.
+     */
+    @Override
+    public void close() {
+        fileReceiver.close();
+    }
+}
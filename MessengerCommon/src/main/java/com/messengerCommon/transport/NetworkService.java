@@ -0,0 +1,253 @@
+package com.messengerCommon.transport;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameReader;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.FileTransfer;
+import com.messengerCommon.jfr.MessageWriteEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking frame transport over a pair of streams, used by the client and by the
+ * thread-per-connection sessions of the server. Every frame is written under one write lock, so a
+ * reader thread can answer a ping while another thread is sending.
+ * <p>
+ * A file holds the lock for one frame at a time and the lock is fair, so messages, pings and
+ * other files sent from other threads go out between its chunks: a message waits for at most one
+ * chunk of each transfer in progress, however large the files are.
+ * <p>
+ * When the stream belongs to a blocking socket channel, pass the channel as well: files are then
+ * sent with {@link FileTransfer#writeFrameTo}, from the file straight to the socket, instead of
+ * being copied through the output stream.
+ * <p>
+ * The bytes of every frame sent and received are added to a pair of counters, which the caller
+ * may share between connections to keep a total across reconnects. Each write of frames is a
+ * {@link MessageWriteEvent} for Flight Recorder, and each file a
+ * {@link com.messengerCommon.jfr.FileSendEvent}.
+ */
+public class NetworkService {
+    private final OutputStream outputStream;
+    private final FrameReader frameReader;
+    private final WritableByteChannel fileChannel;
+    private final long sessionId;
+    private final LongAdder bytesSent;
+    private final LongAdder bytesReceived;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final Map<Long, FileTransfer> outgoingFiles = new ConcurrentHashMap<>();
+    private long nextStreamId = 1;
+
+    /**
+     * @param outputStream should be buffered; every send method flushes once at the end.
+     * @param inputStream  should be buffered; frame headers are read one byte at a time.
+     */
+    public NetworkService(OutputStream outputStream, InputStream inputStream){
+        this(outputStream, inputStream, null);
+    }
+
+    /**
+     * @param fileChannel the blocking channel underneath {@code outputStream}, or null to send
+     *                    files through the stream.
+     */
+    public NetworkService(OutputStream outputStream, InputStream inputStream, WritableByteChannel fileChannel){
+        this(outputStream, inputStream, fileChannel, 0, new LongAdder(), new LongAdder());
+    }
+
+    /**
+     * @param sessionId     identifies the connection in Flight Recorder events.
+     * @param bytesSent     counts the bytes of the frames sent; a file chunk sent through the
+     *                      channel counts its content only.
+     * @param bytesReceived counts the bytes of the frames read.
+     */
+    public NetworkService(OutputStream outputStream, InputStream inputStream, WritableByteChannel fileChannel,
+                          long sessionId, LongAdder bytesSent, LongAdder bytesReceived){
+        this.outputStream = outputStream;
+        this.frameReader = new FrameReader(inputStream);
+        this.fileChannel = fileChannel;
+        this.sessionId = sessionId;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+    }
+
+    public void sendMessage(String messageToSend) throws IOException {
+        sendFrame(Frames.message(messageToSend));
+    }
+
+    /**
+     * Sends a message numbered by this client, for the server to acknowledge; see
+     * {@link com.messengerCommon.codec.FrameType#ACK}.
+     */
+    public void sendMessage(long sequence, String messageToSend) throws IOException {
+        sendFrame(Frames.message(sequence, messageToSend));
+    }
+
+    /**
+     * Streams a file from disk one chunk at a time on a stream of its own. Blocks until the whole
+     * file has been sent; call it from a thread other than the one sending messages.
+     */
+    public void sendFile(Path file) throws IOException {
+        try (FileTransfer transfer = new FileTransfer(nextStreamId(), file.getFileName().toString(), file, sessionId)) {
+            outgoingFiles.put(transfer.getStreamId(), transfer);
+            try {
+                while (!transfer.isDone()) {
+                    writeLock.lock();
+                    try {
+                        if (fileChannel != null) {
+                            long sent = transfer.getBytesSent();
+                            transfer.writeFrameTo(fileChannel);
+                            bytesSent.add(transfer.getBytesSent() - sent);
+                        } else {
+                            ByteBuffer frame = transfer.nextFrame();
+                            if (frame != null) {
+                                writeFrame(frame);
+                            }
+                        }
+                        outputStream.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } finally {
+                outgoingFiles.remove(transfer.getStreamId());
+            }
+        }
+    }
+
+    /**
+     * Limits a file being sent to the ranges the peer is missing.
+     */
+    public void resumeFile(long streamId, long[] missingRanges) {
+        FileTransfer transfer = outgoingFiles.get(streamId);
+        if (transfer != null) {
+            transfer.resume(missingRanges);
+        }
+    }
+
+    /**
+     * Asks the peer to send only the given ranges of the file arriving on {@code streamId}.
+     */
+    public void requestFileRanges(long streamId, long[] missingRanges) throws IOException {
+        sendFrame(Frames.fileResume(streamId, missingRanges));
+    }
+
+    private long nextStreamId() {
+        writeLock.lock();
+        try {
+            return nextStreamId++;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Introduces this client to the server; must be the first frame on a new connection.
+     *
+     * @param resumeFrom one past the sequence number of the last message received, or 0.
+     */
+    public void sendHello(long resumeFrom, String clientId) throws IOException {
+        sendFrame(Frames.hello(resumeFrom, clientId));
+    }
+
+    public void sendPing() throws IOException {
+        sendFrame(Frames.ping());
+    }
+
+    public void sendPong() throws IOException {
+        sendFrame(Frames.pong());
+    }
+
+    /**
+     * Sends encoded frames with a single flush, so a burst of messages costs one write to the
+     * socket per buffer's worth rather than one per message.
+     */
+    public void sendFrames(List<ByteBuffer> frames) throws IOException {
+        MessageWriteEvent event = new MessageWriteEvent();
+        writeLock.lock();
+        try {
+            event.begin();
+            long bytes = 0;
+            for (ByteBuffer frame : frames) {
+                bytes += frame.remaining();
+                writeFrame(frame);
+            }
+            outputStream.flush();
+            recordWrite(event, frames.size(), bytes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void sendFrame(ByteBuffer frame) throws IOException {
+        MessageWriteEvent event = new MessageWriteEvent();
+        writeLock.lock();
+        try {
+            event.begin();
+            int bytes = frame.remaining();
+            writeFrame(frame);
+            outputStream.flush();
+            recordWrite(event, 1, bytes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Fills in and commits the event only when a recording wants it, which costs nothing when
+     * none is running.
+     */
+    private void recordWrite(MessageWriteEvent event, int frames, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.sessionId = sessionId;
+            event.frames = frames;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        bytesSent.add(frame.remaining());
+        outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /**
+     * Blocks until the next frame has been read and passed to the handler.
+     *
+     * @return false when the peer closed the connection between frames.
+     */
+    public boolean readFrame(FrameDecoder.Handler handler) throws IOException {
+        long read = frameReader.getBytesRead();
+        try {
+            return frameReader.readFrame(handler);
+        } finally {
+            bytesReceived.add(frameReader.getBytesRead() - read);
+        }
+    }
+
+    public void closeEverything(Socket socket, OutputStream outputStream, InputStream inputStream){
+        try {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.messengerCommon.transport;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Socket options for every connection. The writers coalesce frames themselves and flush once per
+ * batch, so Nagle's algorithm can only add delay and {@code TCP_NODELAY} is on by default. A
+ * buffer size of 0 keeps the operating system's default, which most systems tune on their own.
+ */
+public record SocketSettings(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize) {
+    public static final SocketSettings DEFAULT = new SocketSettings(true, 0, 0);
+
+    public SocketSettings {
+        if (sendBufferSize < 0 || receiveBufferSize < 0) {
+            throw new IllegalArgumentException("Socket buffer sizes cannot be negative");
+        }
+    }
+
+    /**
+     * Reads the settings from option values, any of which may be null to keep its default.
+     */
+    public static SocketSettings parse(String tcpNoDelay, String sendBufferSize, String receiveBufferSize) {
+        return new SocketSettings(
+                tcpNoDelay == null || tcpNoDelay.isBlank() ? DEFAULT.tcpNoDelay : Boolean.parseBoolean(tcpNoDelay.trim()),
+                sendBufferSize == null || sendBufferSize.isBlank() ? DEFAULT.sendBufferSize : Integer.parseInt(sendBufferSize.trim()),
+                receiveBufferSize == null || receiveBufferSize.isBlank() ? DEFAULT.receiveBufferSize
+                        : Integer.parseInt(receiveBufferSize.trim()));
+    }
+
+    /**
+     * Applies the settings to a connection, before it connects for a client so the receive
+     * buffer can take part in the handshake.
+     */
+    public void applyTo(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * Applies the receive buffer to a listening channel before it binds. Accepted connections
+     * inherit it from there, which is the only way a buffer above 64 KB gets the window scaling
+     * it needs.
+     */
+    public void applyTo(ServerSocketChannel serverChannel) throws IOException {
+        if (receiveBufferSize > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+}
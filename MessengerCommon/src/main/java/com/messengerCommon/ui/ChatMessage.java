@@ -0,0 +1,9 @@
+package com.messengerCommon.ui;
+
+/**
+ * One line of the conversation as the message list shows it.
+ *
+ * @param fromSelf whether this side sent it, which puts it on the right.
+ */
+public record ChatMessage(String text, boolean fromSelf) {
+}
@@ -0,0 +1,66 @@
+package com.messengerCommon.ui;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Draws a {@link ChatMessage} as a bubble. The list view only creates as many cells as fit on
+ * screen and hands them new messages as it scrolls, so the nodes are built once here and
+ * {@link #updateItem} only changes their text, side and colours. The index of every message it
+ * is given goes to a callback, which is how the display notices the ends of its window.
+ */
+class ChatMessageCell extends ListCell<ChatMessage> {
+    private static final String SENT_STYLE = "-fx-background-color: rgb(15,125,242);" +
+            "-fx-background-radius: 20px;";
+    private static final String RECEIVED_STYLE = "-fx-background-color: rgb(233,233,235);" +
+            "-fx-background-radius: 20px;";
+    private static final Color SENT_TEXT = Color.color(0.934, 0.945, 0.996);
+    /** Room the cell's padding and the list's scroll bar take from the bubble's width. */
+    private static final double HORIZONTAL_INSET = 40;
+
+    private final HBox hBox = new HBox();
+    private final Text text = new Text();
+    private final TextFlow textFlow = new TextFlow(text);
+    private final IntConsumer onShown;
+
+    ChatMessageCell(IntConsumer onShown) {
+        this.onShown = onShown;
+        setStyle("-fx-background-color: transparent; -fx-padding: 0;");
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+        setPrefWidth(0);
+        hBox.setPadding(new Insets(5, 5, 5, 10));
+        textFlow.setPadding(new Insets(5, 10, 5, 10));
+        textFlow.maxWidthProperty().bind(widthProperty().subtract(HORIZONTAL_INSET));
+        hBox.getChildren().add(textFlow);
+    }
+
+    @Override
+    protected void updateItem(ChatMessage message, boolean empty) {
+        super.updateItem(message, empty);
+        if (empty || message == null) {
+            text.setText(null);
+            setGraphic(null);
+            return;
+        }
+        text.setText(message.text());
+        if (message.fromSelf()) {
+            hBox.setAlignment(Pos.CENTER_RIGHT);
+            textFlow.setStyle(SENT_STYLE);
+            text.setFill(SENT_TEXT);
+        } else {
+            hBox.setAlignment(Pos.CENTER_LEFT);
+            textFlow.setStyle(RECEIVED_STYLE);
+            text.setFill(Color.BLACK);
+        }
+        setGraphic(hBox);
+        onShown.accept(getIndex());
+    }
+}
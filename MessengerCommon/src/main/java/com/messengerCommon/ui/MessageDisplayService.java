@@ -0,0 +1,242 @@
+package com.messengerCommon.ui;
+
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shows the conversation in a list view. Messages are kept as {@link ChatMessage}s and only the
+ * visible ones get nodes, recycled through {@link ChatMessageCell}, so the cost of layout and
+ * rendering does not grow with the number of messages.
+ * <p>
+ * Messages may be added from any thread. They are buffered and handed to the FX thread in
+ * batches: at most one flush is waiting there at a time, and it adds everything that arrived
+ * since the last one in a single list change and scrolls to the end once.
+ * <p>
+ * Every message is also appended to a {@link MessageHistory}, and the list only holds a window of
+ * it, bounded both in messages and in their estimated size. Messages that fall out of the window
+ * are read back a page at a time when the user scrolls to either end of it. While the window does
+ * not reach the newest message, new messages go to the history only. The history is written and
+ * read on a thread of its own, so the FX thread never waits for the disk.
+ */
+public class MessageDisplayService {
+    public static final int DEFAULT_MAX_MESSAGES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    private static final int PAGE_SIZE = 100;
+    /** Rough size of a message in the window apart from its characters. */
+    private static final int MESSAGE_OVERHEAD = 64;
+    private static final Logger logger = Logger.getLogger(MessageDisplayService.class.getName());
+
+    private final ListView<ChatMessage> messageList;
+    private final MessageHistory history;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+    private final Queue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** Runs appends and page reads in order, so a read sees every message flushed before it. */
+    private final ExecutorService historyIo = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "message-history");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // the rest is only used on the FX thread
+    /** Number of the first message in the window. */
+    private long windowStart;
+    private long windowBytes;
+    /** Number of messages flushed so far; the history may already hold a few more. */
+    private long flushed;
+    private boolean followingLatest = true;
+    /** Set from the moment a page is asked for until it has been read and applied. */
+    private boolean pageScheduled;
+
+    public MessageDisplayService(ListView<ChatMessage> messageList) {
+        this(messageList, createHistory(), DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+    public MessageDisplayService(ListView<ChatMessage> messageList, MessageHistory history, int maxMessages,
+                                 long maxBytes) {
+        if (maxMessages < 2 * PAGE_SIZE) {
+            throw new IllegalArgumentException("The window must hold at least " + 2 * PAGE_SIZE + " messages");
+        }
+        this.messageList = messageList;
+        this.history = history;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        messageList.setItems(messages);
+        messageList.setCellFactory(listView -> new ChatMessageCell(this::onCellShown));
+        messageList.setFocusTraversable(false);
+    }
+
+    private static MessageHistory createHistory() {
+        try {
+            return MessageHistory.createTemporary();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create the message history", e);
+        }
+    }
+
+    public void addMessageToDisplay(String message, boolean isSender) {
+        ChatMessage chatMessage = new ChatMessage(message, isSender);
+        // the history and the queue must see messages in the same order
+        synchronized (pending) {
+            historyIo.execute(() -> {
+                try {
+                    history.append(chatMessage);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Could not add a message to the history", e);
+                }
+            });
+            pending.add(chatMessage);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        List<ChatMessage> batch = new ArrayList<>();
+        ChatMessage message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message);
+        }
+        flushed += batch.size();
+        if (batch.isEmpty() || !followingLatest) {
+            return;
+        }
+        messages.addAll(batch);
+        batch.forEach(added -> windowBytes += estimatedSize(added));
+        trimTop();
+        messageList.scrollTo(messages.size() - 1);
+    }
+
+    /**
+     * Cells are also laid out to measure rows that are not on screen, so this only schedules a
+     * check of what is actually visible.
+     */
+    private void onCellShown(int index) {
+        boolean atTop = index == 0 && windowStart > 0;
+        boolean atBottom = index == messages.size() - 1 && !followingLatest;
+        if ((atTop || atBottom) && !pageScheduled) {
+            pageScheduled = true;
+            Platform.runLater(this::loadPage);
+        }
+    }
+
+    private void loadPage() {
+        if (!(messageList.lookup(".virtual-flow") instanceof VirtualFlow<?> flow)) {
+            pageScheduled = false;
+            return;
+        }
+        IndexedCell<?> first = flow.getFirstVisibleCell();
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        if (first != null && last != null) {
+            int firstVisible = first.getIndex();
+            if (firstVisible == 0 && windowStart > 0) {
+                int count = (int) Math.min(PAGE_SIZE, windowStart);
+                readPage(windowStart - count, count, older -> loadOlder(older, firstVisible));
+                return;
+            } else if (last.getIndex() == messages.size() - 1 && !followingLatest) {
+                long windowEnd = windowStart + messages.size();
+                int count = (int) Math.min(PAGE_SIZE, flushed - windowEnd);
+                readPage(windowEnd, count, newer -> loadNewer(newer, firstVisible));
+                return;
+            }
+        }
+        pageScheduled = false;
+    }
+
+    /**
+     * Reads a page of the history on its thread and hands it to {@code apply} on the FX thread,
+     * unless the window has moved in the meantime.
+     */
+    private void readPage(long from, int count, Consumer<List<ChatMessage>> apply) {
+        long start = windowStart;
+        int size = messages.size();
+        historyIo.execute(() -> {
+            try {
+                List<ChatMessage> page = history.read(from, count);
+                Platform.runLater(() -> {
+                    pageScheduled = false;
+                    if (windowStart == start && messages.size() == size) {
+                        apply.accept(page);
+                    }
+                });
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read the message history", e);
+                Platform.runLater(() -> pageScheduled = false);
+            }
+        });
+    }
+
+    private void loadOlder(List<ChatMessage> older, int firstVisible) {
+        messages.addAll(0, older);
+        older.forEach(added -> windowBytes += estimatedSize(added));
+        windowStart -= older.size();
+        if (trimBottom() > 0) {
+            followingLatest = false;
+        }
+        messageList.scrollTo(firstVisible + older.size());
+    }
+
+    private void loadNewer(List<ChatMessage> newer, int firstVisible) {
+        messages.addAll(newer);
+        newer.forEach(added -> windowBytes += estimatedSize(added));
+        int removed = trimTop();
+        followingLatest = windowStart + messages.size() >= flushed;
+        messageList.scrollTo(Math.max(0, firstVisible - removed));
+    }
+
+    /**
+     * Drops the oldest messages of the window until it is within its bounds.
+     *
+     * @return the number of messages dropped.
+     */
+    private int trimTop() {
+        int removed = 0;
+        while (messages.size() - removed > 1
+                && (messages.size() - removed > maxMessages || windowBytes > maxBytes)) {
+            windowBytes -= estimatedSize(messages.get(removed++));
+        }
+        messages.remove(0, removed);
+        windowStart += removed;
+        return removed;
+    }
+
+    /**
+     * Drops the newest messages of the window until it is within its bounds.
+     *
+     * @return the number of messages dropped.
+     */
+    private int trimBottom() {
+        int kept = messages.size();
+        while (kept > 1 && (kept > maxMessages || windowBytes > maxBytes)) {
+            windowBytes -= estimatedSize(messages.get(--kept));
+        }
+        int removed = messages.size() - kept;
+        messages.remove(kept, messages.size());
+        return removed;
+    }
+
+    private static long estimatedSize(ChatMessage message) {
+        return MESSAGE_OVERHEAD + 2L * message.text().length();
+    }
+}
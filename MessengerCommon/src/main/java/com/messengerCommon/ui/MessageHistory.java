@@ -0,0 +1,111 @@
+package com.messengerCommon.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every message of a conversation, in an append-only log file, so that the display only has to
+ * keep the part the user is looking at in memory. Messages are numbered from 0 in the order they
+ * were appended. Each record is a flag byte for the side, the length of the text and its UTF-8
+ * bytes.
+ * <p>
+ * The file offset of every {@value #INDEX_INTERVAL}th message is kept in memory, so reading a
+ * page anywhere in the log seeks to the nearest indexed message and scans fewer than that many
+ * records to reach it. Safe to use from any thread.
+ */
+public class MessageHistory implements Closeable {
+    private static final int INDEX_INTERVAL = 128;
+
+    private final FileChannel readChannel;
+    private final DataOutputStream out;
+    private long[] index = new long[64];
+    private long size;
+    private long writePosition;
+
+    public MessageHistory(Path file) throws IOException {
+        FileChannel writeChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(writeChannel)));
+        this.readChannel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * A history in a temporary file that is removed when the JVM exits.
+     */
+    public static MessageHistory createTemporary() throws IOException {
+        Path file = Files.createTempFile("messenger-history", ".log");
+        file.toFile().deleteOnExit();
+        return new MessageHistory(file);
+    }
+
+    /**
+     * @return the number the message was given.
+     */
+    public synchronized long append(ChatMessage message) throws IOException {
+        if (size % INDEX_INTERVAL == 0) {
+            int slot = (int) (size / INDEX_INTERVAL);
+            if (slot == index.length) {
+                index = Arrays.copyOf(index, slot * 2);
+            }
+            index[slot] = writePosition;
+        }
+        byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+        out.writeBoolean(message.fromSelf());
+        out.writeInt(text.length);
+        out.write(text);
+        writePosition += 1 + 4 + text.length;
+        return size++;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Reads up to {@code count} messages starting with message number {@code from}.
+     */
+    public synchronized List<ChatMessage> read(long from, int count) throws IOException {
+        long to = Math.min(size, from + count);
+        List<ChatMessage> messages = new ArrayList<>((int) Math.max(0, to - from));
+        if (from < 0 || from >= to) {
+            return messages;
+        }
+        out.flush();
+        long sequence = from - from % INDEX_INTERVAL;
+        readChannel.position(index[(int) (from / INDEX_INTERVAL)]);
+        // not closed: closing the stream would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(readChannel)));
+        for (; sequence < to; sequence++) {
+            boolean fromSelf = in.readBoolean();
+            int length = in.readInt();
+            if (sequence < from) {
+                in.skipNBytes(length);
+                continue;
+            }
+            messages.add(new ChatMessage(new String(in.readNBytes(length), StandardCharsets.UTF_8), fromSelf));
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            readChannel.close();
+        }
+    }
+}
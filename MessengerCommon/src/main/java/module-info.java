@@ -0,0 +1,15 @@
+module com.messangernbcommon {
+    requires static javafx.controls;
+    requires java.logging;
+    requires java.management;
+    requires jdk.httpserver;
+    requires transitive jdk.jfr;
+
+
+    exports com.messengerCommon.codec;
+    exports com.messengerCommon.file;
+    exports com.messengerCommon.jfr;
+    exports com.messengerCommon.metrics;
+    exports com.messengerCommon.transport;
+    exports com.messengerCommon.ui;
+}
@@ -0,0 +1,124 @@
+package com.messengerCommon.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCodecTest {
+    private static final int LIMIT = FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH;
+
+    @Test
+    void roundTripsVarintsAtEveryLengthBoundary() throws ProtocolException {
+        long[] values = {0, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1};
+        int[] lengths = {1, 1, 2, 2, 3, 5, 9, 10};
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.MAX_VARINT_LENGTH);
+            FrameCodec.putVarint(buffer, values[i]);
+            assertEquals(lengths[i], buffer.position());
+            assertEquals(lengths[i], FrameCodec.varintLength(values[i]));
+            assertEquals(values[i], FrameCodec.getVarint(buffer.flip()));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void rejectsVarintsLongerThanTenBytes() {
+        byte[] varint = new byte[FrameCodec.MAX_VARINT_LENGTH + 1];
+        Arrays.fill(varint, (byte) 0x80);
+        varint[varint.length - 1] = 1;
+        assertThrows(ProtocolException.class, () -> FrameCodec.getVarint(ByteBuffer.wrap(varint)));
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.FIXED_HEADER_LENGTH + varint.length + 1)
+                .put((byte) FrameCodec.VERSION).put((byte) FrameType.MESSAGE.getId()).put((byte) 0)
+                .put(varint).put((byte) 0).flip();
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().decode(frame, (type, flags, id, payload) -> {
+        }));
+        assertThrows(ProtocolException.class, () -> reader(frame.rewind()).readFrame((type, flags, id, payload) -> {
+        }));
+    }
+
+    @Test
+    void measuresHeaders() {
+        assertEquals(FrameCodec.FIXED_HEADER_LENGTH + 2, FrameCodec.headerLength(0, 0));
+        assertEquals(FrameCodec.FIXED_HEADER_LENGTH + 2, FrameCodec.headerLength(127, 127));
+        assertEquals(FrameCodec.FIXED_HEADER_LENGTH + 1 + 3, FrameCodec.headerLength(0, LIMIT));
+        assertEquals(FrameCodec.MAX_HEADER_LENGTH, FrameCodec.headerLength(-1, Integer.MAX_VALUE));
+        ByteBuffer frame = FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_NONE, 16384, new byte[200], 0, 200);
+        assertEquals(FrameCodec.headerLength(16384, 200) + 200, frame.remaining());
+    }
+
+    @Test
+    void decodesAFrameSplitAcrossReads() throws IOException {
+        ByteBuffer frame = Frames.message(16384, "hello");
+        ByteBuffer in = ByteBuffer.allocate(frame.remaining());
+        List<String> messages = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder();
+        while (frame.hasRemaining()) {
+            in.put(frame.get()).flip();
+            decoder.decode(in, (type, flags, id, payload) -> {
+                assertEquals(16384, Frames.readSequence(payload));
+                messages.add(Frames.readText(payload));
+            });
+            in.compact();
+        }
+        assertEquals(List.of("hello"), messages);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    void acceptsAPayloadOfExactlyTheLimit() throws IOException {
+        ByteBuffer frame = FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_NONE, 0, new byte[LIMIT], 0, LIMIT);
+        int[] lengths = new int[2];
+        assertEquals(1, new FrameDecoder().decode(frame.duplicate(),
+                (type, flags, id, payload) -> lengths[0] = payload.remaining()));
+        reader(frame).readFrame((type, flags, id, payload) -> lengths[1] = payload.remaining());
+        assertArrayEquals(new int[]{LIMIT, LIMIT}, lengths);
+    }
+
+    @Test
+    void rejectsAPayloadOverTheLimit() {
+        assertThrows(IllegalArgumentException.class,
+                () -> FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_NONE, 0, new byte[LIMIT + 1], 0, LIMIT + 1));
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH)
+                .put((byte) FrameCodec.VERSION).put((byte) FrameType.MESSAGE.getId()).put((byte) 0);
+        FrameCodec.putVarint(header, 0);
+        FrameCodec.putVarint(header, LIMIT + 1);
+        header.flip();
+        // refused from the header alone, before the payload arrives
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().decode(header.duplicate(),
+                (type, flags, id, payload) -> {
+                }));
+        assertThrows(ProtocolException.class, () -> reader(header).readFrame((type, flags, id, payload) -> {
+        }));
+    }
+
+    @Test
+    void refusesMessagesThatWouldExceedTheLimit() {
+        String longest = "x".repeat(Frames.MAX_MESSAGE_TEXT_LENGTH);
+        assertTrue(Frames.fitsMessage(longest));
+        assertTrue(Frames.message(Long.MAX_VALUE, longest).remaining() <= FrameCodec.MAX_HEADER_LENGTH + LIMIT);
+        String tooLong = longest + "x";
+        assertFalse(Frames.fitsMessage(tooLong));
+        String wide = "€".repeat(Frames.MAX_MESSAGE_TEXT_LENGTH / 3 + 1);
+        assertFalse(Frames.fitsMessage(wide));
+        assertThrows(IllegalArgumentException.class, () -> Frames.message("x".repeat(LIMIT + 1)));
+        assertThrows(IllegalArgumentException.class, () -> Frames.message(Long.MAX_VALUE, "x".repeat(LIMIT)));
+    }
+
+    private static FrameReader reader(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return new FrameReader(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,82 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.Frames;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ChunkManifestTest {
+    private static final int CHUNK = Frames.FILE_CHUNK_SIZE;
+    private static final long SIZE = 3L * CHUNK;
+    private static final long FINGERPRINT = 0x1234_5678_9abc_def0L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsTheVerifiedChunksOfTheSameVersion() throws IOException {
+        writeChunks(0, 2);
+        try (FileChannel partFile = partFile();
+             ChunkManifest manifest = ChunkManifest.open(manifestPath(), partFile, SIZE, FINGERPRINT)) {
+            assertEquals(2, manifest.getVerifiedCount());
+            assertArrayEquals(new long[]{CHUNK, CHUNK}, manifest.missingRanges(SIZE, FileReceiver.MAX_RESUME_RANGES));
+        }
+    }
+
+    @Test
+    void discardsTheManifestOfAnotherVersion() throws IOException {
+        writeChunks(0, 1, 2);
+        try (FileChannel partFile = partFile();
+             ChunkManifest manifest = ChunkManifest.open(manifestPath(), partFile, SIZE, FINGERPRINT + 1)) {
+            assertEquals(0, manifest.getVerifiedCount());
+            assertEquals(0, partFile.size());
+            assertArrayEquals(new long[]{0, SIZE}, manifest.missingRanges(SIZE, FileReceiver.MAX_RESUME_RANGES));
+        }
+    }
+
+    @Test
+    void endsTheLastRangeAtTheEndOfTheFileWhenThereAreTooManyGaps() throws IOException {
+        writeChunks(1);
+        try (FileChannel partFile = partFile();
+             ChunkManifest manifest = ChunkManifest.open(manifestPath(), partFile, SIZE, FINGERPRINT)) {
+            assertArrayEquals(new long[]{0, CHUNK, 2L * CHUNK, CHUNK}, manifest.missingRanges(SIZE, 2));
+            assertArrayEquals(new long[]{0, SIZE}, manifest.missingRanges(SIZE, 1));
+            assertFalse(manifest.isComplete());
+        }
+    }
+
+    /**
+     * Writes the given chunks of the file the way a receiver does, then closes the manifest.
+     */
+    private void writeChunks(int... indexes) throws IOException {
+        try (FileChannel partFile = partFile();
+             ChunkManifest manifest = ChunkManifest.open(manifestPath(), partFile, SIZE, FINGERPRINT)) {
+            for (int index : indexes) {
+                byte[] content = new byte[CHUNK];
+                Arrays.fill(content, (byte) (index + 1));
+                ByteBuffer chunk = ByteBuffer.wrap(content);
+                partFile.write(chunk.duplicate(), (long) index * CHUNK);
+                manifest.record(index, chunk);
+            }
+        }
+    }
+
+    private FileChannel partFile() throws IOException {
+        return FileChannel.open(directory.resolve("data.bin.part"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path manifestPath() {
+        return directory.resolve("data.bin.part.manifest");
+    }
+}
@@ -0,0 +1,207 @@
+package com.messengerCommon.file;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileReceiverTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int CHUNK = Frames.FILE_CHUNK_SIZE;
+    private static final int SIZE = 3 * CHUNK + 1000;
+
+    @TempDir
+    Path directory;
+    private final DiskWriter diskWriter = new DiskWriter("test-disk-writer");
+    private final Recorder listener = new Recorder();
+
+    @AfterEach
+    void closeDiskWriter() {
+        diskWriter.close();
+    }
+
+    @Test
+    void refusesMoreFilesAtOnceThanTheLimit() throws IOException {
+        FileReceiver receiver = receiver(FileReceiver.DEFAULT_MAX_FILE_SIZE);
+        for (long streamId = 1; streamId <= FileReceiver.MAX_INCOMING_FILES; streamId++) {
+            receive(receiver, Frames.fileStart(streamId, 10, streamId, "file-" + streamId));
+        }
+        assertEquals(FileReceiver.MAX_INCOMING_FILES, receiver.getIncomingFileCount());
+        assertThrows(ProtocolException.class, () -> receive(receiver, Frames.fileStart(99, 10, 99, "one too many")));
+        receive(receiver, Frames.fileEnd(1));
+        receive(receiver, Frames.fileStart(99, 10, 99, "one more"));
+        receiver.close();
+    }
+
+    @Test
+    void refusesAFileLargerThanTheFreeSpace() throws Exception {
+        FileReceiver receiver = receiver(Long.MAX_VALUE);
+        long size = Files.getFileStore(directory).getUsableSpace() + 1024L * 1024 * 1024;
+        receive(receiver, Frames.fileStart(1, size, 1, "huge"));
+        receive(receiver, Frames.fileEnd(1));
+        awaitDiskWriter();
+        assertEquals(List.of(), listing());
+        receiver.close();
+    }
+
+    @Test
+    void resumesAnInterruptedTransferAndResendsACorruptedChunk() throws Exception {
+        Path source = source(1);
+        FileReceiver interrupted = receiver(FileReceiver.DEFAULT_MAX_FILE_SIZE);
+        FileTransfer first = new FileTransfer(1, "data.bin", source);
+        // the start frame and the first three chunks arrive, then the connection drops
+        assertEquals(List.of(0L, (long) CHUNK, 2L * CHUNK), send(interrupted, first, 4));
+        interrupted.close();
+        first.close();
+        awaitDiskWriter();
+        corrupt(partFile(), CHUNK + 10);
+
+        FileReceiver receiver = receiver(FileReceiver.DEFAULT_MAX_FILE_SIZE);
+        FileTransfer second = new FileTransfer(2, "data.bin", source);
+        send(receiver, second, 1);
+        awaitDiskWriter();
+        long[] missing = listener.missingRanges.get(2L);
+        assertArrayEquals(new long[]{CHUNK, CHUNK, 3L * CHUNK, SIZE - 3L * CHUNK}, missing);
+        second.resume(missing);
+        assertEquals(List.of((long) CHUNK, 3L * CHUNK), send(receiver, second, Integer.MAX_VALUE));
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(awaitFile("data.bin")));
+        assertEquals(List.of("data.bin"), listing());
+        receiver.close();
+    }
+
+    @Test
+    void startsAfreshWhenTheFileChanged() throws Exception {
+        Path source = source(1);
+        FileReceiver interrupted = receiver(FileReceiver.DEFAULT_MAX_FILE_SIZE);
+        FileTransfer first = new FileTransfer(1, "data.bin", source);
+        send(interrupted, first, 3);
+        interrupted.close();
+        first.close();
+        awaitDiskWriter();
+
+        Files.write(source, content(2));
+        Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 60_000));
+        FileReceiver receiver = receiver(FileReceiver.DEFAULT_MAX_FILE_SIZE);
+        List<Long> offsets = send(receiver, new FileTransfer(2, "data.bin", source), Integer.MAX_VALUE);
+        assertEquals(List.of(0L, (long) CHUNK, 2L * CHUNK, 3L * CHUNK), offsets);
+        assertArrayEquals(content(2), Files.readAllBytes(awaitFile("data.bin")));
+        assertNull(listener.missingRanges.get(2L));
+        receiver.close();
+    }
+
+    private FileReceiver receiver(long maxFileSize) {
+        return new FileReceiver(directory, diskWriter, FileWriteMode.CHANNEL, true, maxFileSize, 0, () -> "sender");
+    }
+
+    private void receive(FileReceiver receiver, ByteBuffer frame) throws IOException {
+        new FrameDecoder().decode(frame, (type, flags, streamId, payload) ->
+                receiver.onFrame(type, streamId, payload, listener));
+    }
+
+    /**
+     * Hands up to {@code maxFrames} frames of the transfer to the receiver.
+     *
+     * @return the offsets of the chunks among them.
+     */
+    private List<Long> send(FileReceiver receiver, FileTransfer transfer, int maxFrames) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        ByteBuffer frame;
+        for (int i = 0; i < maxFrames && (frame = transfer.nextFrame()) != null; i++) {
+            new FrameDecoder().decode(frame, (type, flags, streamId, payload) -> {
+                if (type == FrameType.FILE_CHUNK) {
+                    offsets.add(Frames.readChunkOffset(payload.duplicate()));
+                }
+                receiver.onFrame(type, streamId, payload, listener);
+            });
+        }
+        return offsets;
+    }
+
+    private Path source(int seed) throws IOException {
+        return Files.write(Files.createDirectories(directory.resolve("sent")).resolve("data.bin"), content(seed));
+    }
+
+    private static byte[] content(int seed) {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private Path partFile() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".part")).findFirst().orElseThrow();
+        }
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0)).rewind();
+            channel.write(value, position);
+        }
+    }
+
+    private Path awaitFile(String fileName) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!listener.files.containsKey(fileName) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Path file = listener.files.get(fileName);
+        assertNotNull(file, fileName + " was not saved");
+        return file;
+    }
+
+    private void awaitDiskWriter() throws IOException, InterruptedException {
+        CountDownLatch drained = new CountDownLatch(1);
+        diskWriter.execute(drained::countDown, 0, true);
+        assertTrue(drained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private List<String> listing() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile).map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    private static class Recorder implements FileReceiver.Listener {
+        final Map<String, Path> files = new ConcurrentHashMap<>();
+        final Map<Long, long[]> missingRanges = new ConcurrentHashMap<>();
+
+        @Override
+        public void onFile(String fileName, Path file) {
+            files.put(fileName, file);
+        }
+
+        @Override
+        public void onResumable(long streamId, long[] ranges) {
+            missingRanges.put(streamId, ranges);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.messengerCommon.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class FileTransferTest {
+    private static final long SIZE = 1000;
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    @Test
+    void fingerprintsTellVersionsApart() {
+        long fingerprint = FileTransfer.fingerprint("report.txt", SIZE, MODIFIED);
+        assertEquals(fingerprint, FileTransfer.fingerprint("report.txt", SIZE, MODIFIED));
+        assertNotEquals(fingerprint, FileTransfer.fingerprint("report.txt", SIZE + 1, MODIFIED));
+        assertNotEquals(fingerprint, FileTransfer.fingerprint("report.txt", SIZE, MODIFIED + 1));
+        // equal under a 31-multiplier string hash
+        assertNotEquals(FileTransfer.fingerprint("Aa", SIZE, MODIFIED), FileTransfer.fingerprint("BB", SIZE, MODIFIED));
+        // a change in one field is not undone by a matching change in another
+        assertNotEquals(FileTransfer.fingerprint("a", SIZE, MODIFIED),
+                FileTransfer.fingerprint("b", SIZE - 31, MODIFIED));
+    }
+
+    @Test
+    void fingerprintsOfManyRenamesDoNotCollide() {
+        Set<Long> fingerprints = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            fingerprints.add(FileTransfer.fingerprint("copy " + i + ".txt", SIZE, MODIFIED));
+        }
+        assertEquals(100_000, fingerprints.size());
+    }
+}
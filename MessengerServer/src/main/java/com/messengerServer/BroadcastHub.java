@@ -0,0 +1,98 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.Frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes messages to the members of a room. A message is encoded once and each member queues a
+ * view of the same bytes, so fanning out to N sessions costs N queue insertions rather than N
+ * encodings or N socket writes on the sender's thread.
+ */
+public class BroadcastHub {
+    public static final String DEFAULT_ROOM = "lobby";
+
+    private static final Logger logger = Logger.getLogger(BroadcastHub.class.getName());
+
+    private final Map<String, Set<ClientSession>> rooms = new ConcurrentHashMap<>();
+
+    public void join(String room, ClientSession session) {
+        rooms.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet()).add(session);
+    }
+
+    public void leave(String room, ClientSession session) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    public void leaveAll(ClientSession session) {
+        for (String room : rooms.keySet()) {
+            leave(room, session);
+        }
+    }
+
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    public Set<ClientSession> getMembers(String room) {
+        return Collections.unmodifiableSet(rooms.getOrDefault(room, Set.of()));
+    }
+
+    /**
+     * Sends a text message to everyone in the room except its sender.
+     *
+     * @param sender the session the message came from, or null when it comes from the server.
+     * @return the number of sessions that accepted the message.
+     */
+    public int publishMessage(String room, String message, ClientSession sender) {
+        return publish(room, Frames.message(message), sender);
+    }
+
+    /**
+     * Sends a file to everyone in the room except its sender. Each member streams the file from
+     * disk on its own, so nothing of it is held in memory beyond one chunk per member.
+     *
+     * @return the number of sessions that accepted the file.
+     */
+    public int publishFile(String room, String fileName, Path file, ClientSession sender) {
+        int delivered = 0;
+        for (ClientSession member : rooms.getOrDefault(room, Set.of())) {
+            if (member == sender) {
+                continue;
+            }
+            try {
+                member.sendFile(fileName, file);
+                delivered++;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not send " + fileName + " to " + member, e);
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Sends an encoded frame to everyone in the room except its sender.
+     *
+     * @return the number of sessions that accepted it.
+     */
+    public int publish(String room, ByteBuffer encoded, ClientSession sender) {
+        int delivered = 0;
+        for (ClientSession member : rooms.getOrDefault(room, Set.of())) {
+            if (member != sender && member.deliver(encoded)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+}
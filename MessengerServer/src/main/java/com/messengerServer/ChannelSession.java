@@ -0,0 +1,138 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.file.FileTransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A session served by the {@link SelectorServer}: holds the channel and the partially decoded
+ * input. The selector thread is the writer that drains the outbound queue.
+ * <p>
+ * The read buffer starts small and only grows to the size of a frame the decoder has already
+ * validated, then shrinks back once that frame has been consumed, so idle sessions stay cheap.
+ * Queued messages go out in {@link WriteBatch}es, one gathering write each, and file chunks are
+ * sent with {@link FileTransfer#writeFrameTo}, straight from the file to the channel. While
+ * received files are waiting for the disk the session stops reading, so the selector thread never
+ * blocks on the disk writer.
+ */
+public class ChannelSession extends ClientSession {
+    private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectorServer server;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private final WriteBatch batch;
+    private FileTransfer currentTransfer;
+
+    public ChannelSession(SocketChannel channel, SelectorServer server, ConnectionManager connectionManager) {
+        super(connectionManager, false);
+        this.channel = channel;
+        this.server = server;
+        this.batch = new WriteBatch(id, metrics.bytesSent);
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    protected void onEnqueued() {
+        server.requestWrite(this);
+    }
+
+    /**
+     * Reads whatever the channel has available and decodes it. Called on the selector thread.
+     *
+     * @return false once the peer has closed its side of the connection between two frames.
+     * @throws EOFException if it closed it in the middle of one.
+     */
+    boolean readFromChannel() throws IOException {
+        if (fileReceiver.isBackedUp()) {
+            server.pauseReading(this);
+            fileReceiver.whenDrained(() -> server.resumeReading(this));
+            return true;
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            if (readBuffer.position() > 0) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            return false;
+        }
+        readBuffer.flip();
+        try {
+            decoder.decode(readBuffer, this);
+        } finally {
+            readBuffer.compact();
+        }
+        resizeReadBuffer();
+        return true;
+    }
+
+    private void resizeReadBuffer() {
+        int required = decoder.getRequiredBytes();
+        if (required > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(readBuffer.flip());
+            readBuffer = larger;
+        } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Writes queued messages and file frames until the socket send buffer fills up. A batch or
+     * frame that was only partly written is finished before anything else. Called on the
+     * selector thread.
+     *
+     * @return true when everything queued so far has been written.
+     */
+    boolean writeToChannel() throws IOException {
+        while (true) {
+            if (!batch.isEmpty() && !batch.writeTo(channel)) {
+                return false;
+            }
+            if (currentTransfer != null) {
+                long sent = currentTransfer.getBytesSent();
+                boolean written = currentTransfer.writeFrameTo(channel);
+                metrics.bytesSent.add(currentTransfer.getBytesSent() - sent);
+                if (!written) {
+                    return false;
+                }
+                outboundQueue.transferFrameWritten(currentTransfer);
+                currentTransfer = null;
+            }
+            batch.fill(outboundQueue);
+            if (batch.isEmpty()) {
+                currentTransfer = outboundQueue.currentTransfer();
+                if (currentTransfer == null) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    boolean hasPendingWrites() {
+        return !batch.isEmpty() || currentTransfer != null || !outboundQueue.isEmpty();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void closeTransport() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // the channel is being discarded either way
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.FrameCodec;
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileTransfer;
+import com.messengerCommon.transport.MessageDispatcher;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * One connected client, independent of how the server drives its I/O. See {@link ChannelSession}
+ * for the selector-based one and {@link SocketSession} for the thread-per-connection one.
+ * <p>
+ * Outgoing messages never touch the socket on the sender's thread: they are put on the session's
+ * {@link OutboundQueue} and written by the session's own writer. Incoming frames are decoded by
+ * the subclass and handed to {@link #onFrame}.
+ * <p>
+ * A client opens with a {@link FrameType#HELLO} that names it and says which messages it has
+ * seen; it receives room traffic only from then on. The session's {@link SessionState} follows
+ * it from there: anything but control frames before the HELLO is a protocol error, and the
+ * session only joins its room once it has caught up.
+ * <p>
+ * Every frame received counts as a sign of life. The {@link IdleReaper} pings a session that has
+ * gone quiet and closes it if the ping is not answered either.
+ */
+public abstract class ClientSession implements FrameDecoder.Handler {
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final int MAX_CLIENT_ID_LENGTH = 128;
+    private static final Logger logger = Logger.getLogger(ClientSession.class.getName());
+
+    protected final long id = NEXT_ID.getAndIncrement();
+    protected final ConnectionManager connectionManager;
+    protected final OutboundQueue outboundQueue;
+    protected final ServerMetrics metrics;
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.AWAITING_HELLO);
+    private final AtomicLong nextStreamId = new AtomicLong(1);
+    protected final FileReceiver fileReceiver;
+    private final MessageDispatcher dispatcher;
+    private volatile String clientId;
+    private final long openedNanos = System.nanoTime();
+    /** When the last frame arrived, for the {@link IdleReaper}. */
+    private volatile long lastReadNanos = openedNanos;
+
+    /**
+     * @param waitForDisk whether the reader of this session may block while received files are
+     *                    waiting to be written.
+     */
+    protected ClientSession(ConnectionManager connectionManager, boolean waitForDisk) {
+        this.connectionManager = connectionManager;
+        this.metrics = connectionManager.getMetrics();
+        this.outboundQueue = connectionManager.createOutboundQueue();
+        this.fileReceiver = connectionManager.createFileReceiver(id, this::getClientId, waitForDisk);
+        this.dispatcher = new MessageDispatcher(new SessionEvents(), fileReceiver, id);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public SessionState getState() {
+        return state.get();
+    }
+
+    public boolean isOpen() {
+        return state.get() != SessionState.CLOSED;
+    }
+
+    /**
+     * Moves a session that has caught up to {@link SessionState#LIVE}.
+     *
+     * @return false if it was closed meanwhile.
+     */
+    boolean goLive() {
+        return state.compareAndSet(SessionState.CATCHING_UP, SessionState.LIVE);
+    }
+
+    long getOpenedNanos() {
+        return openedNanos;
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public int getOutboundQueueDepth() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * @return the files queued for or being sent to this client plus those arriving from it.
+     */
+    public int getFileTransferCount() {
+        return outboundQueue.getPendingTransfers() + fileReceiver.getIncomingFileCount();
+    }
+
+    public abstract SocketAddress getRemoteAddress();
+
+    /**
+     * @return the id the client introduced itself with, or an empty string before it has.
+     */
+    public String getClientId() {
+        String id = clientId;
+        return id == null ? "" : id;
+    }
+
+    public void sendMessage(String message) throws IOException {
+        if (!deliver(Frames.message(message))) {
+            throw new IOException(this + " did not accept the message");
+        }
+    }
+
+    /**
+     * Queues a file to be streamed from disk on a new stream of this session.
+     */
+    public void sendFile(String fileName, Path file) throws IOException {
+        FileTransfer transfer = new FileTransfer(nextStreamId.getAndIncrement(), fileName, file, id);
+        if (!isOpen() || !outboundQueue.offerTransfer(transfer)) {
+            transfer.close();
+            throw new IOException(this + " did not accept the file");
+        }
+        onEnqueued();
+    }
+
+    /**
+     * Queues an already encoded message. The buffer may be shared with other sessions; each one
+     * queues its own duplicate so positions do not interfere.
+     *
+     * @return false when the session is closed or was disconnected because its queue overflowed.
+     */
+    public boolean deliver(ByteBuffer encoded) {
+        if (!isOpen()) {
+            return false;
+        }
+        boolean accepted;
+        try {
+            accepted = outboundQueue.offer(encoded.duplicate());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            if (isOpen()) {
+                logger.warning("Outbound queue of " + this + " is full, disconnecting");
+                close();
+            }
+            return false;
+        }
+        onEnqueued();
+        return true;
+    }
+
+    /**
+     * Queues a control frame ahead of the messages. Unlike {@link #deliver} it never waits and
+     * never evicts a message, whatever the overflow policy, so threads that must not block,
+     * such as the selector thread, can call it.
+     *
+     * @return false when the session is closed, or was disconnected because its peer left too
+     * many control frames unread.
+     */
+    public boolean deliverControl(ByteBuffer encoded) {
+        if (!isOpen()) {
+            return false;
+        }
+        if (!outboundQueue.offerControl(encoded.duplicate())) {
+            if (isOpen()) {
+                logger.warning(this + " is not reading its control frames, disconnecting");
+                close();
+            }
+            return false;
+        }
+        onEnqueued();
+        return true;
+    }
+
+    /**
+     * Waits until the outbound queue is at most half full.
+     *
+     * @return false once the session has been closed.
+     */
+    public boolean awaitOutboundRoom() {
+        try {
+            return outboundQueue.awaitRoom(outboundQueue.getCapacity() / 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void onFrame(FrameType type, int flags, long streamId, ByteBuffer payload) throws IOException {
+        lastReadNanos = System.nanoTime();
+        metrics.bytesReceived.add(FrameCodec.headerLength(streamId, payload.remaining()) + payload.remaining());
+        if (type != FrameType.HELLO && !type.isControl() && state.get() == SessionState.AWAITING_HELLO) {
+            throw new ProtocolException(this + " sent " + type + " before saying hello");
+        }
+        dispatcher.onFrame(type, flags, streamId, payload);
+    }
+
+    /**
+     * Tells the writer of this session that the outbound queue has something new.
+     */
+    protected abstract void onEnqueued();
+
+    /**
+     * Releases the underlying connection. Only ever called once per session.
+     */
+    protected abstract void closeTransport();
+
+    public void close() {
+        if (state.getAndSet(SessionState.CLOSED) == SessionState.CLOSED) {
+            return;
+        }
+        outboundQueue.close();
+        closeTransport();
+        dispatcher.close();
+        connectionManager.sessionClosed(this);
+    }
+
+    private class SessionEvents implements MessageDispatcher.Listener {
+        @Override
+        public void onMessage(long sequence, String message) throws ProtocolException {
+            if (!Frames.fitsMessage(message)) {
+                // it could not be relayed with the id the log gives it
+                throw new ProtocolException("Message is longer than " + Frames.MAX_MESSAGE_TEXT_LENGTH + " bytes");
+            }
+            connectionManager.messageReceived(ClientSession.this, sequence, message);
+        }
+
+        @Override
+        public void onFile(String fileName, Path file) {
+            connectionManager.fileReceived(ClientSession.this, fileName, file);
+        }
+
+        @Override
+        public void onPing() {
+            deliverControl(Frames.pong());
+        }
+
+        @Override
+        public void requestFileRanges(long streamId, long[] missingRanges) {
+            deliverControl(Frames.fileResume(streamId, missingRanges));
+        }
+
+        @Override
+        public void onFileRangesRequested(long streamId, long[] missingRanges) {
+            FileTransfer transfer = outboundQueue.findTransfer(streamId);
+            if (transfer != null) {
+                transfer.resume(missingRanges);
+            }
+        }
+
+        @Override
+        public void onHello(long resumeFrom, String id) throws ProtocolException {
+            if (state.get() != SessionState.AWAITING_HELLO) {
+                throw new ProtocolException(ClientSession.this + " said hello twice");
+            }
+            if (id.length() > MAX_CLIENT_ID_LENGTH) {
+                throw new ProtocolException("Client id is longer than " + MAX_CLIENT_ID_LENGTH + " characters");
+            }
+            clientId = id;
+            if (state.compareAndSet(SessionState.AWAITING_HELLO, SessionState.CATCHING_UP)) {
+                connectionManager.helloReceived(ClientSession.this, resumeFrom);
+            }
+        }
+
+        @Override
+        public void onAcknowledged(long sequence) throws ProtocolException {
+            throw new ProtocolException("Clients do not acknowledge messages");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Session " + id + " (" + getRemoteAddress() + ")";
+    }
+}
@@ -1,56 +1,503 @@
 package com.messengerServer;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.DiskWriter;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.metrics.MetricsPublisher;
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.SocketSettings;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Owns the listening server and every connected {@link ClientSession}. Network I/O is driven by
+ * the {@link ServerTransport} chosen through {@link ServerMode}; listener callbacks run on a small
+ * fixed set of worker threads, each session pinned to one worker so its events stay in order.
+ * <p>
+ * A message from one client is relayed to the other members of the
+ * {@link BroadcastHub#DEFAULT_ROOM} from a worker thread. Every text message, relayed or sent by
+ * the server itself, is first appended to the {@link MessageLog} and goes out with the id it got
+ * there, in the order of those ids. A client reconnecting with the id of the last message it saw is
+ * sent what it missed straight from the log, so the log doubles as every client's offline queue.
+ * <p>
+ * Clients number their own messages and keep them until the server acknowledges them, sending the
+ * rest again when they reconnect. A message is only acknowledged once its log entry is on disk, so
+ * no acknowledged message is lost to a crash. The last number logged for each client id is
+ * remembered, and rebuilt from the log when the server starts, so a message that arrives twice is
+ * acknowledged again but relayed once, even when the first acknowledgement was lost to a restart.
+ * <p>
+ * Files from every session are written to disk by one shared {@link DiskWriter}. Messages and
+ * files the server sends itself are logged and queued on a broadcast thread of their own, in the
+ * order they were sent, so the FX thread never waits for the disk or a full client queue.
+ * <p>
+ * Sessions that stop answering are closed by one shared {@link IdleReaper}, which is what frees a
+ * session whose client vanished without closing its socket.
+ * <p>
+ * The {@link ServerMetrics} are published over JMX while the server runs, and over HTTP on the
+ * loopback interface when the configuration gives a metrics port.
+ */
 public class ConnectionManager {
-    private static final int SERVER_PORT = 1234;
+    private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long BACKPRESSURE_TIMEOUT_MILLIS = 5000;
+    private static final long WORKER_SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final int REPLAY_BATCH_SIZE = 512;
     private static final Logger logger = Logger.getLogger(ConnectionManager.class.getName());
-    private ServerSocket serverSocket;
-    private Socket socket;
-    private NetworkService networkService;
+    private final Map<Long, ClientSession> sessions = new ConcurrentHashMap<>();
+    private final List<SessionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService[] workers = new ExecutorService[WORKER_THREADS];
+    private final ExecutorService broadcaster = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BroadcastHub broadcastHub = new BroadcastHub();
+    private final Object relayLock = new Object();
+    /** Messages to publish and sessions to add to the room, in log order; see {@link #relay}. */
+    private final Queue<Runnable> publications = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean publishing = new AtomicBoolean();
+    /** The client's own number of the last message logged from it, by client id. */
+    private final Map<String, Long> lastClientSequences = new ConcurrentHashMap<>();
+    private final int port;
+    private final ServerMode mode;
+    private final OverflowPolicy overflowPolicy;
+    private final int outboundQueueCapacity;
+    private final Path downloadDirectory = Path.of("");
+    private final DiskWriter diskWriter = new DiskWriter("disk-writer");
+    private final FileWriteMode fileWriteMode;
+    private final long maxFileSize;
+    private final Path messageLogDirectory;
+    private final int messageLogSegments;
+    private final SocketSettings socketSettings;
+    private final IdleReaper idleReaper;
+    private final int metricsPort;
+    private final ServerMetrics metrics = new ServerMetrics(sessions.values());
+    private MessageLog messageLog;
+    private ServerTransport server;
+    private MetricsPublisher metricsPublisher;
 
     public ConnectionManager() {
+        this(ServerConfig.DEFAULT);
+    }
+
+    public ConnectionManager(ServerMode mode, OverflowPolicy overflowPolicy, int outboundQueueCapacity,
+                             FileWriteMode fileWriteMode, Path messageLogDirectory, SocketSettings socketSettings,
+                             HeartbeatSettings heartbeatSettings) {
+        this(new ServerConfig(ServerConfig.DEFAULT_PORT, mode, overflowPolicy, outboundQueueCapacity, fileWriteMode,
+                FileReceiver.DEFAULT_MAX_FILE_SIZE, messageLogDirectory, MessageLog.DEFAULT_MAX_SEGMENTS, socketSettings, heartbeatSettings,
+                MetricsPublisher.NO_HTTP));
+    }
+
+    public ConnectionManager(ServerConfig config) {
+        this.port = config.port();
+        this.mode = config.mode();
+        this.overflowPolicy = config.overflowPolicy();
+        this.outboundQueueCapacity = config.outboundQueueCapacity();
+        this.fileWriteMode = config.fileWriteMode();
+        this.maxFileSize = config.maxFileSize();
+        this.messageLogDirectory = config.messageLogDirectory();
+        this.messageLogSegments = config.messageLogSegments();
+        this.socketSettings = config.socketSettings();
+        this.idleReaper = new IdleReaper(config.heartbeatSettings());
+        this.metricsPort = config.metricsPort();
+        for (int i = 0; i < workers.length; i++) {
+            String threadName = "session-worker-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     public void initializeServer() throws IOException {
+        messageLog = new MessageLog(messageLogDirectory, messageLogSegments);
+        restoreClientSequences();
+        server = switch (mode) {
+            case SELECTOR -> new SelectorServer(port, this);
+            case VIRTUAL_THREADS -> new ThreadPerConnectionServer(port, this,
+                    Thread.ofVirtual().name("session-", 1).factory());
+            case PLATFORM_THREADS -> new ThreadPerConnectionServer(port, this,
+                    Thread.ofPlatform().name("session-", 1).factory());
+        };
+        idleReaper.start();
+        metricsPublisher = MetricsPublisher.start(metrics.registry, "Server", metricsPort);
+        server.start();
+        logger.info("Server waiting for connections on port: " + port + " (" + mode + ")");
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public BroadcastHub getBroadcastHub() {
+        return broadcastHub;
+    }
+
+    /**
+     * Reads the log once, which costs about as much as the checksum scan that opening it has just
+     * done; both are bounded by the segments the log keeps. A client whose last message was
+     * deleted with an old segment is no longer known, so a copy of it would be relayed again.
+     */
+    private void restoreClientSequences() {
+        long next = 0;
+        List<MessageLog.Entry> entries;
+        while (!(entries = messageLog.read(next, REPLAY_BATCH_SIZE)).isEmpty()) {
+            for (MessageLog.Entry entry : entries) {
+                if (entry.senderSequence() >= 0) {
+                    lastClientSequences.put(entry.sender(), entry.senderSequence());
+                }
+            }
+            next = entries.get(entries.size() - 1).id() + 1;
+        }
+    }
+
+    SocketSettings getSocketSettings() {
+        return socketSettings;
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
 
-        serverSocket = new ServerSocket(SERVER_PORT);
-        logger.info("Server waiting for connection on port: " + SERVER_PORT);
-        acceptClientConnection(serverSocket);
+    /**
+     * Where files sent by clients are saved.
+     */
+    public Path getDownloadDirectory() {
+        return downloadDirectory;
     }
 
-    private void acceptClientConnection(ServerSocket serverSocket) throws IOException {
-        this.socket = serverSocket.accept();
-        logger.info("Client connected on port: " + serverSocket.getLocalPort());
-        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-        this.networkService = new NetworkService(outputStream, inputStream);
+    /**
+     * @param clientId    who the session's files come from, once it has said hello.
+     * @param waitForDisk false for sessions whose reader must never block.
+     */
+    FileReceiver createFileReceiver(long sessionId, Supplier<String> clientId, boolean waitForDisk) {
+        return new FileReceiver(downloadDirectory, diskWriter, fileWriteMode, waitForDisk, maxFileSize, sessionId,
+                clientId);
     }
 
-    public NetworkService getNetworkService() {
-        return networkService;
+    OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(outboundQueueCapacity, overflowPolicy, BACKPRESSURE_TIMEOUT_MILLIS,
+                metrics.queueLatency);
+    }
+
+    public void addSessionListener(SessionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeSessionListener(SessionListener listener) {
+        listeners.remove(listener);
+    }
+
+    public Collection<ClientSession> getSessions() {
+        return sessions.values();
     }
 
     public boolean isConnected() {
-        return socket != null && socket.isConnected();
+        return !sessions.isEmpty();
     }
 
-    public void closeConnection() {
+    /**
+     * @return completes once the message is logged. It is queued for the clients in log order, by
+     * this or another thread that is publishing. Fails at once if the message is too long to send.
+     */
+    public CompletableFuture<Void> broadcastMessage(String message) {
+        if (!Frames.fitsMessage(message)) {
+            return CompletableFuture.failedFuture(new IOException("The message is longer than "
+                    + Frames.MAX_MESSAGE_TEXT_LENGTH + " bytes"));
+        }
+        return broadcast(() -> {
+            relay(message, null, -1);
+            return null;
+        });
+    }
+
+    /**
+     * @return completes with the number of clients the file was queued for.
+     */
+    public CompletableFuture<Integer> broadcastFile(String fileName, Path file) {
+        return broadcast(() -> broadcastHub.publishFile(BroadcastHub.DEFAULT_ROOM, fileName, file, null));
+    }
+
+    private <T> CompletableFuture<T> broadcast(Supplier<T> task) {
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            return CompletableFuture.supplyAsync(task, broadcaster);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IOException("Server is shutting down"));
+        }
+    }
+
+    void sessionOpened(ClientSession session) {
+        sessions.put(session.getId(), session);
+        idleReaper.add(session);
+        dispatch(session, () -> listeners.forEach(listener -> listener.onConnected(session)));
+    }
+
+    void sessionClosed(ClientSession session) {
+        if (sessions.remove(session.getId()) != null) {
+            broadcastHub.leaveAll(session);
+            logger.info("Client disconnected: " + session);
+            dispatch(session, () -> listeners.forEach(listener -> listener.onDisconnected(session)));
+        }
+    }
+
+    /**
+     * @param sequence the client's own number for the message, or -1 if it did not number it.
+     */
+    void messageReceived(ClientSession session, long sequence, String message) {
+        long receivedAt = System.nanoTime();
+        metrics.messagesReceived.increment();
+        dispatch(session, () -> {
+            boolean relayed = relay(message, session, sequence);
+            metrics.relayLatency.recordSince(receivedAt);
+            if (relayed) {
+                listeners.forEach(listener -> listener.onMessage(session, message));
+            }
+        });
+    }
+
+    void fileReceived(ClientSession session, String fileName, Path file) {
+        dispatch(session, () -> {
+            broadcastHub.publishFile(BroadcastHub.DEFAULT_ROOM, fileName, file, session);
+            listeners.forEach(listener -> listener.onFile(session, fileName, file));
+        });
+    }
+
+    /**
+     * Logs a message and publishes it with its id. Only the logging and the check for copies run
+     * under the relay lock; the message then joins the {@link #publications} in the order of its
+     * id, and whichever thread is publishing sends it to the room, so members receive messages in
+     * the order of their ids, which is what lets a client resume after the last id it saw. A slow
+     * member holds up the publishing thread but never the threads logging messages. A message
+     * from the server that cannot be logged is still delivered, without an id: losing the record
+     * is better than losing the conversation.
+     * <p>
+     * A message the sender numbered is acknowledged once its log entry is on disk; one numbered
+     * no higher than the last logged from the same client is a copy resent after a reconnect,
+     * and is only acknowledged again, once everything logged so far is on disk. A numbered
+     * message that cannot be logged is neither relayed nor acknowledged, and its session is
+     * closed, so the client sends it again once it has reconnected.
+     *
+     * @return false if the message was a copy or could not be logged, and was dropped.
+     */
+    private boolean relay(String message, ClientSession sender, long senderSequence) {
+        String clientId = sender == null ? "" : sender.getClientId();
+        boolean acknowledged = senderSequence >= 0 && !clientId.isEmpty();
+        long id;
+        ByteBuffer frame;
+        synchronized (relayLock) {
+            if (acknowledged && senderSequence <= lastClientSequences.getOrDefault(clientId, 0L)) {
+                acknowledgeWhenDurable(sender, senderSequence, messageLog.nextId() - 1);
+                return false;
+            }
+            try {
+                id = messageLog.append(clientId, acknowledged ? senderSequence : -1, message);
+                frame = Frames.message(id, message);
+                if (acknowledged) {
+                    lastClientSequences.put(clientId, senderSequence);
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not log a message", e);
+                id = -1;
+                frame = acknowledged ? null : Frames.message(message);
+            }
+            if (frame != null) {
+                ByteBuffer logged = frame;
+                publications.add(() -> metrics.messagesSent.add(
+                        broadcastHub.publish(BroadcastHub.DEFAULT_ROOM, logged, sender)));
+            }
+        }
+        if (frame == null) {
+            sender.close();
+            return false;
+        }
+        publish();
+        if (acknowledged) {
+            acknowledgeWhenDurable(sender, senderSequence, id);
+        }
+        return true;
+    }
+
+    /**
+     * Acknowledges a client's message once the log entry with the given id, and every one before
+     * it, is on disk. The acknowledgement goes out as a control frame, ahead of the messages and
+     * outside the overflow policy, so a full queue neither delays it nor drops it. It is queued
+     * from the session's worker, which leaves the log's commit thread to committing.
+     *
+     * @param id the entry to wait for, or -1 to acknowledge right away.
+     */
+    private void acknowledgeWhenDurable(ClientSession session, long sequence, long id) {
+        messageLog.whenDurable(id, () -> dispatch(session, () -> session.deliverControl(Frames.ack(sequence))));
+    }
+
+    /**
+     * Runs the queued {@link #publications} unless another thread already is. One that is finds
+     * anything queued meanwhile before it stops, so every publication runs, one at a time and in
+     * order.
+     */
+    private void publish() {
+        while (!publications.isEmpty() && publishing.compareAndSet(false, true)) {
+            try {
+                Runnable publication;
+                while ((publication = publications.poll()) != null) {
+                    try {
+                        publication.run();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Could not publish a message", e);
+                    }
+                }
+            } finally {
+                publishing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Adds a client that has introduced itself to the room, after sending it the messages logged
+     * since {@code resumeFrom} if it has been connected before. A client that sent messages
+     * before is also told which of them were logged, so it only sends the rest again.
+     */
+    void helloReceived(ClientSession session, long resumeFrom) {
+        Long lastSequence = lastClientSequences.get(session.getClientId());
+        if (lastSequence != null) {
+            acknowledgeWhenDurable(session, lastSequence, messageLog.nextId() - 1);
+        }
+        if (resumeFrom <= 0) {
+            joinRoom(session);
+            return;
+        }
+        Thread.ofVirtual().name("replay-" + session.getId()).start(() -> replay(session, resumeFrom));
+    }
+
+    /**
+     * Streams logged messages to a session in batches of up to {@value #REPLAY_BATCH_SIZE}, each
+     * encoded into one buffer and queued as soon as the session's queue is half empty, so the
+     * replay runs as fast as the disk and the client allow. The session joins the room once it
+     * has caught up; that last check is made under the relay lock and the join is queued with
+     * the {@link #publications}, so the session gets every message logged after the replay from
+     * the room, and none of those it was replayed. Messages the client sent itself are skipped.
+     */
+    private void replay(ClientSession session, long resumeFrom) {
+        long next = resumeFrom;
+        long replayed = 0;
+        while (session.awaitOutboundRoom()) {
+            List<MessageLog.Entry> entries = messageLog.read(next, REPLAY_BATCH_SIZE);
+            if (entries.isEmpty()) {
+                boolean caughtUp;
+                synchronized (relayLock) {
+                    // nothing can be logged meanwhile, and reads skip any ids the log is missing
+                    caughtUp = messageLog.read(next, 1).isEmpty();
+                    if (caughtUp) {
+                        publications.add(() -> joinRoom(session));
+                    }
+                }
+                if (caughtUp) {
+                    publish();
+                    logger.info("Replayed " + replayed + " messages to " + session);
+                    return;
+                }
+                continue;
+            }
+            next = entries.get(entries.size() - 1).id() + 1;
+            List<ByteBuffer> frames = new ArrayList<>(entries.size());
+            int length = 0;
+            for (MessageLog.Entry entry : entries) {
+                if (!entry.sender().equals(session.getClientId())) {
+                    ByteBuffer frame = Frames.message(entry.id(), entry.message());
+                    frames.add(frame);
+                    length += frame.remaining();
+                }
             }
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            ByteBuffer batch = ByteBuffer.allocate(length);
+            frames.forEach(batch::put);
+            if (batch.flip().hasRemaining() && !session.deliver(batch)) {
+                return;
             }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Problem with closing the connection", e);
+            replayed += frames.size();
+            metrics.messagesSent.add(frames.size());
+        }
+    }
+
+    private void joinRoom(ClientSession session) {
+        if (!session.goLive()) {
+            return;
+        }
+        broadcastHub.join(BroadcastHub.DEFAULT_ROOM, session);
+        if (!session.isOpen()) {
+            // closed while catching up, after sessionClosed had already emptied its rooms
+            broadcastHub.leaveAll(session);
+        }
+    }
+
+    private void dispatch(ClientSession session, Runnable event) {
+        ExecutorService worker = workers[(int) (session.getId() % workers.length)];
+        try {
+            worker.execute(() -> {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Session listener failed for " + session, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.fine("Dropping event for " + session + ", server is shutting down");
+        }
+    }
+
+    /**
+     * Stops the server: closes every session, waits for all of them to finish, lets the disk
+     * writer finish the chunks already received, lets the workers drain the disconnect events and
+     * finally forces the message log to disk.
+     */
+    public void closeConnection() {
+        if (server != null) {
+            server.close();
+        }
+        idleReaper.close();
+        if (metricsPublisher != null) {
+            metricsPublisher.close();
+        }
+        for (ClientSession session : sessions.values()) {
+            session.close();
+        }
+        diskWriter.close();
+        broadcaster.shutdown();
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        try {
+            broadcaster.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            for (ExecutorService worker : workers) {
+                worker.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (messageLog != null) {
+            messageLog.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -2,9 +2,6 @@ package com.messengerServer;
 
 import javafx.stage.FileChooser;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
 
 public class FileService {
 
@@ -13,14 +10,4 @@ public class FileService {
         fileChooser.setTitle("Choose file");
         return fileChooser.showOpenDialog(null);
     }
-
-    public byte[] readFileContent(File fileToSend) throws IOException {
-        return Files.readAllBytes(fileToSend.toPath());
-    }
-
-    public void saveFile(String fileName, byte[] fileContent) throws IOException{
-        try (FileOutputStream fileOutputStream = new FileOutputStream(fileName)) {
-            fileOutputStream.write(fileContent);
-        }
-    }
 }
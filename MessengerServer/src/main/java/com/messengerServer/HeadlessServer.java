@@ -0,0 +1,31 @@
+package com.messengerServer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs the server without a user interface, for machines and containers without a display.
+ * Nothing here touches JavaFX, so the server starts without waiting for the toolkit and runs from
+ * the class path without the JavaFX modules:
+ * <pre>
+ * java -cp MessengerServer/target/classes:MessengerCommon/target/classes \
+ *     com.messengerServer.HeadlessServer --config=server.properties
+ * </pre>
+ * The options are those of {@link ServerConfig}. The server stops cleanly, forcing the message
+ * log to disk, when the process is interrupted or terminated.
+ */
+public final class HeadlessServer {
+    private static final Logger logger = Logger.getLogger(HeadlessServer.class.getName());
+
+    private HeadlessServer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long startedAt = System.nanoTime();
+        ConnectionManager connectionManager = new ConnectionManager(ServerConfig.fromArguments(args));
+        Runtime.getRuntime().addShutdownHook(new Thread(connectionManager::closeConnection, "server-shutdown"));
+        connectionManager.initializeServer();
+        logger.info("Server started in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + " ms");
+    }
+}
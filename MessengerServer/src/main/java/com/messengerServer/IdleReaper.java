@@ -0,0 +1,155 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.transport.HeartbeatSettings;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Pings sessions that have gone quiet and closes the ones that stay silent, so a client whose
+ * machine or network has vanished does not hold its session forever. One thread and one timer
+ * wheel serve every session: the wheel has a slot for each tick of
+ * {@code 1/}{@value #TICKS_PER_INTERVAL} of the heartbeat interval, enough of them to span the
+ * timeout, and each open session sits in exactly one slot.
+ * <p>
+ * Readers only record when they last heard from their session, and never touch the wheel. When a
+ * session's slot comes up it is checked against that time and moved on to the slot of its next
+ * check, so a busy session costs one look per interval and the wheel needs no locking. A closed
+ * session is dropped the next time its slot comes up.
+ * <p>
+ * Pings are control frames: they never wait for room in a full outbound queue or push a message
+ * out of it, so one slow session cannot hold up the checks of the others.
+ */
+final class IdleReaper {
+    private static final int TICKS_PER_INTERVAL = 4;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final Logger logger = Logger.getLogger(IdleReaper.class.getName());
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final ArrayList<ClientSession>[] wheel;
+    /** Sessions opened since the last tick, handed over from the server's threads. */
+    private final Queue<ClientSession> added = new ConcurrentLinkedQueue<>();
+    /** Sessions whose slot has come up, checked once the wheel has been advanced. */
+    private final ArrayList<ClientSession> expired = new ArrayList<>();
+    private final Thread thread;
+    private final LongSupplier clock;
+    private final long startNanos;
+    /** The last tick whose slot has been checked. Only used by the reaper's thread. */
+    private long currentTick;
+
+    IdleReaper(HeartbeatSettings settings) {
+        this(settings, System::nanoTime);
+    }
+
+    /**
+     * @param clock the time in nanoseconds, which sessions' read times are compared with.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    IdleReaper(HeartbeatSettings settings, LongSupplier clock) {
+        this.clock = clock;
+        this.startNanos = clock.getAsLong();
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.intervalMillis());
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.timeoutMillis());
+        this.tickNanos = Math.max(MIN_TICK_NANOS, intervalNanos / TICKS_PER_INTERVAL);
+        this.wheel = new ArrayList[(int) (timeoutNanos / tickNanos) + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.thread = new Thread(this::run, "idle-reaper");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void add(ClientSession session) {
+        added.add(session);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long sleep = startNanos + (currentTick + 1) * tickNanos - clock.getAsLong();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                advance();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Checks the sessions of every slot that has come up by now, including ticks missed while the
+     * thread was not running, then puts the newly added sessions on the wheel.
+     */
+    void advance() {
+        long now = clock.getAsLong();
+        for (long due = tickOf(now); currentTick < due; ) {
+            ArrayList<ClientSession> slot = wheel[(int) (++currentTick % wheel.length)];
+            expired.addAll(slot);
+            slot.clear();
+        }
+        for (ClientSession dueSession : expired) {
+            check(dueSession, now);
+        }
+        expired.clear();
+        ClientSession session;
+        while ((session = added.poll()) != null) {
+            schedule(session, now + intervalNanos);
+        }
+    }
+
+    /**
+     * Closes a session that has been silent for the whole timeout, or that has not said hello
+     * within it, and pings one that has been silent for an interval.
+     */
+    private void check(ClientSession session, long now) {
+        if (!session.isOpen()) {
+            return;
+        }
+        long lastRead = session.getLastReadNanos();
+        long idle = now - lastRead;
+        if (session.getState() == SessionState.AWAITING_HELLO && now - session.getOpenedNanos() >= timeoutNanos) {
+            logger.info(session + " did not say hello in " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, closing");
+            session.close();
+        } else if (idle >= timeoutNanos) {
+            logger.info(session + " sent nothing for " + TimeUnit.NANOSECONDS.toMillis(idle) + " ms, closing");
+            session.close();
+        } else if (idle >= intervalNanos) {
+            session.deliverControl(Frames.ping());
+            schedule(session, Math.min(now + intervalNanos, lastRead + timeoutNanos));
+        } else {
+            schedule(session, lastRead + intervalNanos);
+        }
+    }
+
+    /**
+     * Puts a session in the slot of the first tick at or after the given time, and at least one
+     * tick ahead, which is never more than the timeout away and so always fits on the wheel.
+     */
+    private void schedule(ClientSession session, long atNanos) {
+        long tick = Math.max(currentTick + 1, tickOf(atNanos + tickNanos - 1));
+        wheel[(int) (tick % wheel.length)].add(session);
+    }
+
+    private long tickOf(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    /**
+     * Stops the reaper without closing any session.
+     */
+    void close() {
+        thread.interrupt();
+    }
+}
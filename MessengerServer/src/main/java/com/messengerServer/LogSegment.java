@@ -0,0 +1,229 @@
+package com.messengerServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the {@link MessageLog}, mapped into memory at a fixed capacity. Records are laid
+ * out back to back from the start of the file:
+ * <pre>
+ *   length   4 bytes, never 0
+ *   CRC32C   4 bytes, of the payload
+ *   payload  length bytes
+ * </pre>
+ * and the mapping is zero beyond the last one, so a zero length marks the end. A record's id is
+ * the segment's base id, which is also its file name, plus its position in the segment.
+ * <p>
+ * Every {@value #INDEX_INTERVAL} bytes the id and position of a record go into a sparse index
+ * held in memory, so finding a record costs a binary search and a scan of at most that many
+ * bytes. The index is rebuilt when the segment is opened, by the same scan that checks every
+ * record and stops at the first that is missing or torn. Not thread safe: {@link MessageLog}
+ * guards it.
+ */
+final class LogSegment {
+    static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final String SUFFIX = ".log";
+
+    private final long baseId;
+    private final MappedByteBuffer buffer;
+    private final CRC32C crc = new CRC32C();
+    private int[] indexIds = new int[64];
+    private int[] indexPositions = new int[64];
+    private int indexSize;
+    private int count;
+    private int end;
+    private int syncedEnd;
+
+    private LogSegment(long baseId, MappedByteBuffer buffer) {
+        this.baseId = baseId;
+        this.buffer = buffer;
+    }
+
+    static Path fileName(Path directory, long baseId) {
+        return directory.resolve(String.format("%020d%s", baseId, SUFFIX));
+    }
+
+    /**
+     * @return the base id of a segment file, or -1 if the file is not one.
+     */
+    static long baseIdOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Maps a segment file, creating it at {@code capacity} bytes if it does not exist yet, and
+     * recovers its records. An existing file keeps its own size.
+     */
+    static LogSegment open(Path directory, long baseId, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(fileName(directory, baseId), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size() > 0 ? channel.size() : capacity;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + baseId + " is too large to map: " + size + " bytes");
+            }
+            LogSegment segment = new LogSegment(baseId, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_LENGTH
+                    || checksum(position + RECORD_HEADER_LENGTH, length) != buffer.getInt(position + 4)) {
+                break;
+            }
+            indexRecord(position);
+            count++;
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        end = position;
+        syncedEnd = position;
+    }
+
+    /**
+     * Zeroes whatever follows the last valid record, so that nothing left by a torn write, or by
+     * pages that reached the disk out of order before a crash, can be read as a record once new
+     * ones are appended. Words that are already zero are only read, so holes in the file stay
+     * holes. Meant for the segment that will be appended to.
+     */
+    void clearTail() {
+        int position = end;
+        for (; position + Long.BYTES <= buffer.capacity(); position += Long.BYTES) {
+            if (buffer.getLong(position) != 0) {
+                buffer.putLong(position, 0);
+            }
+        }
+        for (; position < buffer.capacity(); position++) {
+            buffer.put(position, (byte) 0);
+        }
+    }
+
+    private int checksum(int position, int length) {
+        crc.reset();
+        crc.update(buffer.slice(position, length));
+        return (int) crc.getValue();
+    }
+
+    private void indexRecord(int position) {
+        if (indexSize > 0 && position - indexPositions[indexSize - 1] < INDEX_INTERVAL) {
+            return;
+        }
+        if (indexSize == indexIds.length) {
+            indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexIds[indexSize] = count;
+        indexPositions[indexSize] = position;
+        indexSize++;
+    }
+
+    long getBaseId() {
+        return baseId;
+    }
+
+    /**
+     * @return the id the next record appended here would get.
+     */
+    long nextId() {
+        return baseId + count;
+    }
+
+    boolean fits(int payloadLength) {
+        return (long) end + RECORD_HEADER_LENGTH + payloadLength <= buffer.capacity();
+    }
+
+    /**
+     * Appends a record; the caller has checked that it {@link #fits}.
+     *
+     * @return its id.
+     */
+    long append(byte[] payload) {
+        crc.reset();
+        crc.update(payload);
+        buffer.put(end + RECORD_HEADER_LENGTH, payload);
+        buffer.putInt(end + 4, (int) crc.getValue());
+        // the length goes last, so a record is never visible with a partly written payload
+        buffer.putInt(end, payload.length);
+        indexRecord(end);
+        end += RECORD_HEADER_LENGTH + payload.length;
+        return baseId + count++;
+    }
+
+    /**
+     * Reads up to {@code maxCount} payloads starting with record {@code fromId}, which must be in
+     * this segment.
+     */
+    int read(long fromId, int maxCount, RecordVisitor visitor) {
+        int target = (int) (fromId - baseId);
+        if (target < 0 || target >= count) {
+            return 0;
+        }
+        int slot = Arrays.binarySearch(indexIds, 0, indexSize, target);
+        if (slot < 0) {
+            slot = -slot - 2;
+        }
+        int relativeId = indexIds[slot];
+        int position = indexPositions[slot];
+        int read = 0;
+        while (relativeId < count && read < maxCount) {
+            int length = buffer.getInt(position);
+            if (relativeId >= target) {
+                visitor.visit(baseId + relativeId, buffer.slice(position + RECORD_HEADER_LENGTH, length));
+                read++;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+            relativeId++;
+        }
+        return read;
+    }
+
+    interface RecordVisitor {
+        void visit(long id, ByteBuffer payload);
+    }
+
+    /**
+     * @return where the next record would be written.
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return how far the segment is known to be on disk.
+     */
+    int getSyncedEnd() {
+        return syncedEnd;
+    }
+
+    /**
+     * Writes a range of the mapping back to the file and waits for the disk. Only reads the
+     * mapping, so it may run without the log's lock while other records are appended.
+     */
+    void force(int from, int to) {
+        if (to > from) {
+            buffer.force(from, to - from);
+        }
+    }
+
+    void synced(int to) {
+        syncedEnd = Math.max(syncedEnd, to);
+    }
+}
@@ -9,19 +9,38 @@ import java.io.IOException;
 
 /**
  * The main class for the server application which launches the JavaFX application.
+ * The server itself is started in {@link #init()}, before the JavaFX stage is built,
+ * and is handed to the controller so it does not depend on the UI coming up; the window
+ * only watches the server's traffic and sends to its clients. Options are those of
+ * {@link ServerConfig}, for example {@code --mode=virtual_threads} or {@code --config=FILE}.
+ * {@link HeadlessServer} runs the same server without any of JavaFX.
  */
 public class Main extends Application {
 
+    private ConnectionManager connectionManager;
+
+    @Override
+    public void init() throws IOException {
+        connectionManager = new ConnectionManager(ServerConfig.fromOptions(getParameters().getNamed()));
+        connectionManager.initializeServer();
+    }
+
     @Override
     public void start(Stage stage) throws IOException {
         FXMLLoader fxmlLoader = new FXMLLoader(Main.class.getResource("MainView.fxml"));
+        fxmlLoader.setControllerFactory(type -> new ServerController(connectionManager));
         Scene scene = new Scene(fxmlLoader.load(), 480, 400);
         stage.setTitle("Server");
         stage.setScene(scene);
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        connectionManager.closeConnection();
+    }
+
     public static void main(String[] args) {
-        launch();
+        launch(args);
     }
-}
\ No newline at end of file
+}
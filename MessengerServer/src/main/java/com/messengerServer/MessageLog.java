@@ -0,0 +1,348 @@
+package com.messengerServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * An append-only record of the messages the server relays, numbered from 0, in a directory of
+ * memory-mapped {@link LogSegment}s. Each record holds the client id of the sender, empty for the
+ * server itself, the sender's own number for the message if it gave one, and the text. Appending
+ * copies the message into the mapping of the newest segment and returns at once; when a message
+ * does not fit, that segment is forced to disk and a new one, named after the next id, is started.
+ * <p>
+ * The log keeps at most {@code maxSegments} segments: starting one more deletes the oldest, so
+ * the disk, the mappings and the scan that opening the log makes stay bounded. Ids are never
+ * reused, so the oldest message kept is simply no longer numbered 0.
+ * <p>
+ * Forcing to disk is a group commit: a background thread writes back everything appended since
+ * its last round, at the latest {@code commitIntervalMillis} after the first of those messages,
+ * or right away when an action is waiting for it in {@link #whenDurable}. One fsync then covers
+ * every message that arrived in between, and appending never waits for it.
+ * <p>
+ * Reading by id finds the segment with a binary search over the segments' base ids and the record
+ * with the segment's sparse index. Reads skip the ids that are missing, whether deleted with an
+ * old segment or lost with the damaged end of one that is not the newest. Safe to use from any
+ * thread.
+ */
+public class MessageLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 50;
+    /** A gigabyte of messages at the default segment size. */
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+    /**
+     * @param senderSequence the sender's own number for the message, or -1.
+     */
+    public record Entry(long id, String sender, long senderSequence, String message) {
+    }
+
+    /** Set in the sender length when the sender's number for the message follows the sender. */
+    private static final int SENDER_SEQUENCE_FLAG = 0x8000;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long commitIntervalNanos;
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition commitRequested = lock.newCondition();
+    /** What {@link #whenDurable} was asked to run, first id first. */
+    private final PriorityQueue<DurableAction> durableActions =
+            new PriorityQueue<>(Comparator.comparingLong(DurableAction::id));
+    private final Thread committer;
+    private LogSegment active;
+    /** Every id below this one is on disk. */
+    private long durableId;
+    private boolean closed;
+
+    private record DurableAction(long id, Runnable action) {
+    }
+
+    public MessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public MessageLog(Path directory, int maxSegments) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, maxSegments, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the log in {@code directory}, creating it if needed, and recovers the segments
+     * already there, after deleting the oldest beyond {@code maxSegments}.
+     */
+    public MessageLog(Path directory, int segmentSize, int maxSegments, long commitIntervalMillis) throws IOException {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("The log needs at least one segment: " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis);
+        Files.createDirectories(directory);
+        List<Long> baseIds;
+        try (Stream<Path> files = Files.list(directory)) {
+            baseIds = files.map(LogSegment::baseIdOf).filter(baseId -> baseId >= 0).sorted().toList();
+        }
+        for (long baseId : baseIds.subList(0, Math.max(0, baseIds.size() - maxSegments))) {
+            Files.delete(LogSegment.fileName(directory, baseId));
+        }
+        for (long baseId : baseIds.subList(Math.max(0, baseIds.size() - maxSegments), baseIds.size())) {
+            segments.put(baseId, LogSegment.open(directory, baseId, segmentSize));
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, LogSegment.open(directory, 0, segmentSize));
+        }
+        active = segments.lastEntry().getValue();
+        active.clearTail();
+        durableId = active.nextId();
+        committer = new Thread(this::runCommits, "message-log-commit");
+        committer.setDaemon(true);
+        committer.start();
+        logger.info("Message log in " + directory.toAbsolutePath() + " has " + segments.size()
+                + " segments starting at id " + segments.firstKey() + ", next id " + durableId);
+    }
+
+    /**
+     * @param senderSequence the sender's own number for the message, or -1.
+     * @return the id the message was given.
+     */
+    public long append(String sender, long senderSequence, String message) throws IOException {
+        byte[] payload = encode(sender, senderSequence, message);
+        if (LogSegment.RECORD_HEADER_LENGTH + (long) payload.length > segmentSize) {
+            throw new IOException("A message of " + payload.length + " bytes does not fit a log segment");
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Message log is closed");
+            }
+            if (!active.fits(payload.length)) {
+                roll();
+            }
+            boolean wasClean = active.nextId() == durableId;
+            long id = active.append(payload);
+            if (wasClean) {
+                commitRequested.signal();
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the full segment, starts the next one and deletes the oldest if there are now too
+     * many. Happens once per segment, so its fsync runs under the lock rather than teaching the
+     * committer about more than one segment.
+     */
+    private void roll() throws IOException {
+        active.force(active.getSyncedEnd(), active.getEnd());
+        active.synced(active.getEnd());
+        long baseId = active.nextId();
+        active = LogSegment.open(directory, baseId, segmentSize);
+        active.clearTail();
+        segments.put(baseId, active);
+        durableId = baseId;
+        while (segments.size() > maxSegments) {
+            long oldest = segments.pollFirstEntry().getKey();
+            try {
+                Files.delete(LogSegment.fileName(directory, oldest));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not delete the old log segment " + oldest, e);
+            }
+        }
+    }
+
+    /**
+     * @return the id the next message will get.
+     */
+    public long nextId() {
+        lock.lock();
+        try {
+            return active.nextId();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs {@code action} once the message with the given id, and every one before it, is on
+     * disk: right away on the calling thread if it already is, otherwise on the commit thread,
+     * which then commits without waiting for more messages to join. The action must not block.
+     * Actions whose message never reaches the disk, because the log is closed first, are not run.
+     */
+    public void whenDurable(long id, Runnable action) {
+        lock.lock();
+        try {
+            if (id >= durableId) {
+                if (!closed) {
+                    durableActions.add(new DurableAction(id, action));
+                    commitRequested.signal();
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Takes the actions whose message is now on disk. Called with the lock held.
+     */
+    private List<Runnable> takeDurableActions() {
+        List<Runnable> due = new ArrayList<>();
+        while (!durableActions.isEmpty() && durableActions.peek().id() < durableId) {
+            due.add(durableActions.poll().action());
+        }
+        return due;
+    }
+
+    /**
+     * Reads up to {@code maxCount} messages starting with the one with id {@code fromId}, or the
+     * first one kept after it.
+     *
+     * @return the messages in the order of their ids; empty only when none is at or after
+     * {@code fromId}.
+     */
+    public List<Entry> read(long fromId, int maxCount) {
+        List<Entry> entries = new ArrayList<>(Math.min(maxCount, 1024));
+        lock.lock();
+        try {
+            Map.Entry<Long, LogSegment> segment = segments.floorEntry(fromId);
+            if (segment == null) {
+                segment = segments.firstEntry();
+            }
+            long nextId = fromId;
+            while (segment != null && entries.size() < maxCount) {
+                // past a gap, go on with the first id of the next segment
+                nextId = Math.max(nextId, segment.getKey());
+                nextId += segment.getValue().read(nextId, maxCount - entries.size(),
+                        (id, payload) -> entries.add(decode(id, payload)));
+                segment = segments.higherEntry(segment.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entries;
+    }
+
+    private static byte[] encode(String sender, long senderSequence, String message) throws IOException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length >= SENDER_SEQUENCE_FLAG) {
+            throw new IOException("Sender id is too long: " + senderBytes.length + " bytes");
+        }
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        boolean sequenced = senderSequence >= 0;
+        ByteBuffer payload = ByteBuffer.allocate(Short.BYTES + senderBytes.length
+                + (sequenced ? Long.BYTES : 0) + messageBytes.length);
+        payload.putShort((short) (senderBytes.length | (sequenced ? SENDER_SEQUENCE_FLAG : 0))).put(senderBytes);
+        if (sequenced) {
+            payload.putLong(senderSequence);
+        }
+        return payload.put(messageBytes).array();
+    }
+
+    private static Entry decode(long id, ByteBuffer payload) {
+        int senderField = Short.toUnsignedInt(payload.getShort());
+        int senderLength = senderField & ~SENDER_SEQUENCE_FLAG;
+        String sender = StandardCharsets.UTF_8.decode(payload.slice(payload.position(), senderLength)).toString();
+        payload.position(payload.position() + senderLength);
+        long senderSequence = (senderField & SENDER_SEQUENCE_FLAG) != 0 ? payload.getLong() : -1;
+        return new Entry(id, sender, senderSequence, StandardCharsets.UTF_8.decode(payload).toString());
+    }
+
+    private void runCommits() {
+        while (true) {
+            LogSegment segment;
+            long target;
+            int from;
+            int to;
+            lock.lock();
+            try {
+                while (!closed && active.nextId() == durableId) {
+                    commitRequested.await();
+                }
+                if (!closed && durableActions.isEmpty()) {
+                    // let more messages join this commit, unless an action is waiting for it
+                    commitRequested.awaitNanos(commitIntervalNanos);
+                }
+                if (closed && active.nextId() == durableId) {
+                    durableActions.clear();
+                    return;
+                }
+                segment = active;
+                target = active.nextId();
+                from = active.getSyncedEnd();
+                to = active.getEnd();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                segment.force(from, to);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Could not force the message log to disk, retrying", e);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(commitIntervalNanos);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            List<Runnable> due;
+            lock.lock();
+            try {
+                segment.synced(to);
+                durableId = Math.max(durableId, target);
+                due = takeDurableActions();
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable action : due) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Action waiting for the message log failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces what is left to disk and stops the commit thread.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            commitRequested.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.messengerServer;
+
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileTransfer;
+import com.messengerCommon.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer of encoded messages waiting to be written to one client. Producers never
+ * wait longer than the {@link OverflowPolicy} allows, so one slow reader cannot hold up the
+ * sender or the other recipients of a broadcast.
+ * <p>
+ * Writers take a buffer out of the queue before they start writing it, so
+ * {@link OverflowPolicy#DROP_OLDEST} never discards a partially written message.
+ * <p>
+ * File transfers wait in a separate list and are not subject to the overflow policy. The writer
+ * sends a frame of the {@link #currentTransfer()} only when no message is waiting, so chat traffic
+ * goes out between the chunks of a file, and the transfers take turns frame by frame, each on its
+ * own stream. At most {@link FileReceiver#MAX_INCOMING_FILES} of them take turns, as many as a
+ * receiver accepts at once; the others wait until one finishes. Each queue has a single writer,
+ * which is the only thread that touches a transfer until it is finished or the queue is closed.
+ * <p>
+ * The time each message spent waiting, from being queued to being taken by the writer, is
+ * recorded in a {@link LatencyHistogram} that may be shared by every queue of the server.
+ * <p>
+ * Control frames such as pongs and resume requests have a short queue of their own that the
+ * writer empties before taking any message. {@link #offerControl} never waits and never drops a
+ * message, so the selector thread can answer a peer even when the peer's queue is full.
+ */
+public class OutboundQueue {
+    /** More control frames than this waiting means the peer has stopped reading. */
+    static final int MAX_CONTROL_FRAMES = 16;
+
+    private final ByteBuffer[] ring;
+    /** When each message in {@link #ring} was queued, at the same index. */
+    private final long[] enqueuedAt;
+    private final LatencyHistogram waitTimes;
+    private final OverflowPolicy policy;
+    private final long backpressureTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /** The transfers in the order they take turns; only the first few are on the wire. */
+    private final List<FileTransfer> transfers = new ArrayList<>();
+    private final Queue<ByteBuffer> controlFrames = new ArrayDeque<>();
+    private int head;
+    private int size;
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long backpressureTimeoutMillis,
+                         LatencyHistogram waitTimes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.ring = new ByteBuffer[capacity];
+        this.enqueuedAt = new long[capacity];
+        this.waitTimes = waitTimes;
+        this.policy = policy;
+        this.backpressureTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(backpressureTimeoutMillis);
+    }
+
+    /**
+     * Queues a message according to the overflow policy.
+     *
+     * @return false when the message was refused and the session should be disconnected.
+     */
+    public boolean offer(ByteBuffer buffer) throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (size == ring.length) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        size--;
+                        dropped++;
+                    }
+                    case DISCONNECT -> {
+                        return false;
+                    }
+                    case BACKPRESSURE -> {
+                        long remaining = backpressureTimeoutNanos;
+                        while (size == ring.length && !closed) {
+                            if (remaining <= 0) {
+                                return false;
+                            }
+                            remaining = notFull.awaitNanos(remaining);
+                        }
+                        if (closed) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            int tail = (head + size) % ring.length;
+            ring[tail] = buffer;
+            enqueuedAt[tail] = System.nanoTime();
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a control frame ahead of the messages, whatever the overflow policy and however
+     * full the queue is.
+     *
+     * @return false when the queue is closed or already holds {@value #MAX_CONTROL_FRAMES}
+     * control frames, and the session should be disconnected.
+     */
+    public boolean offerControl(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            if (closed || controlFrames.size() >= MAX_CONTROL_FRAMES) {
+                return false;
+            }
+            controlFrames.add(buffer);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no more than {@code maxMessages} messages are queued. Lets a producer that has a
+     * lot to send keep pace with the writer instead of running into the overflow policy.
+     *
+     * @return false once the queue has been closed.
+     */
+    public boolean awaitRoom(int maxMessages) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size > maxMessages && !closed) {
+                notFull.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Queues a file transfer behind the ones already waiting.
+     *
+     * @return false when the queue has been closed.
+     */
+    public boolean offerTransfer(FileTransfer transfer) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            transfers.add(transfer);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next control frame or, when none is waiting, the next message, without waiting.
+     *
+     * @return the frame, or null when none is waiting.
+     */
+    public ByteBuffer pollMessage() {
+        lock.lock();
+        try {
+            ByteBuffer control = controlFrames.poll();
+            if (control != null) {
+                return control;
+            }
+            return size > 0 ? removeHead() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the transfer the writer should send a frame of when no message is waiting, or null
+     * when no file is queued.
+     */
+    public FileTransfer currentTransfer() {
+        lock.lock();
+        try {
+            return transfers.isEmpty() ? null : transfers.get(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queued transfer on the given stream, or null when it has finished or was
+     * never queued.
+     */
+    public FileTransfer findTransfer(long streamId) {
+        lock.lock();
+        try {
+            for (FileTransfer transfer : transfers) {
+                if (transfer.getStreamId() == streamId) {
+                    return transfer;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called after each complete frame of the {@link #currentTransfer()}. A finished transfer is
+     * removed; any other goes to the back of the transfers taking turns, so files queued together
+     * share the connection a chunk at a time instead of waiting for each other.
+     */
+    public void transferFrameWritten(FileTransfer transfer) throws IOException {
+        boolean done = transfer.isDone();
+        lock.lock();
+        try {
+            if (!transfers.isEmpty() && transfers.get(0) == transfer) {
+                transfers.remove(0);
+                if (!done) {
+                    transfers.add(Math.min(transfers.size(), FileReceiver.MAX_INCOMING_FILES - 1), transfer);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (done) {
+            transfer.close();
+        }
+    }
+
+    /**
+     * Waits until a control frame, a message or a file transfer is queued.
+     *
+     * @return false once the queue has been closed.
+     */
+    public boolean awaitPending() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && controlFrames.isEmpty() && transfers.isEmpty()) {
+                if (closed) {
+                    return false;
+                }
+                notEmpty.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer removeHead() {
+        ByteBuffer buffer = ring[head];
+        ring[head] = null;
+        waitTimes.recordSince(enqueuedAt[head]);
+        head = (head + 1) % ring.length;
+        size--;
+        notFull.signalAll();
+        return buffer;
+    }
+
+    /**
+     * @return the number of messages waiting, not counting file transfers.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPendingTransfers() {
+        lock.lock();
+        try {
+            return transfers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return size == 0 && controlFrames.isEmpty() && transfers.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything queued, abandons the file transfers and wakes up blocked producers
+     * and writers.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < size; i++) {
+                ring[(head + i) % ring.length] = null;
+            }
+            size = 0;
+            controlFrames.clear();
+            for (FileTransfer transfer : transfers) {
+                try {
+                    transfer.close();
+                } catch (IOException ignored) {
+                    // the transfer is being abandoned either way
+                }
+            }
+            transfers.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.messengerServer;
+
+import java.util.Arrays;
+
+/**
+ * What a session does when its outbound queue is full because the client reads too slowly.
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest message that has not started to be written yet. */
+    DROP_OLDEST,
+    /** Close the session; the client has to reconnect. */
+    DISCONNECT,
+    /** Block the sender until there is room, and disconnect if none appears in time. */
+    BACKPRESSURE;
+
+    public static OverflowPolicy parse(String value) {
+        if (value == null || value.isBlank()) {
+            return DISCONNECT;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow policy " + value + ", expected one of "
+                    + Arrays.toString(values()).toLowerCase());
+        }
+    }
+}
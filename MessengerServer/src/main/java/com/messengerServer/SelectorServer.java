@@ -0,0 +1,202 @@
+package com.messengerServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking accept/read/write loop. A single selector thread owns every channel; decoded
+ * messages are handed to the {@link ConnectionManager} workers so that slow listeners never
+ * hold up network I/O.
+ */
+public class SelectorServer implements ServerTransport, Runnable {
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final Logger logger = Logger.getLogger(SelectorServer.class.getName());
+
+    private final int port;
+    private final ConnectionManager connectionManager;
+    private final Queue<ChannelSession> writeRequests = new ConcurrentLinkedQueue<>();
+    private final Queue<ChannelSession> readRequests = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loopThread;
+    private volatile boolean running;
+
+    public SelectorServer(int port, ConnectionManager connectionManager) {
+        this.port = port;
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        connectionManager.getSocketSettings().applyTo(serverChannel);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loopThread = new Thread(this, "selector-loop");
+        loopThread.start();
+    }
+
+    /**
+     * Asks the selector thread to start watching the session for writability. Safe to call from
+     * any thread.
+     */
+    void requestWrite(ChannelSession session) {
+        writeRequests.add(session);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops watching the session for input until {@link #resumeReading} is called. Only called
+     * on the selector thread.
+     */
+    void pauseReading(ChannelSession session) {
+        SelectionKey key = session.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    void resumeReading(ChannelSession session) {
+        readRequests.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerInterest();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            logger.fine("Selector closed");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Selector loop failed", e);
+        }
+    }
+
+    private void registerInterest() {
+        ChannelSession session;
+        while ((session = writeRequests.poll()) != null) {
+            addInterest(session, SelectionKey.OP_WRITE);
+        }
+        while ((session = readRequests.poll()) != null) {
+            addInterest(session, SelectionKey.OP_READ);
+        }
+    }
+
+    private void addInterest(ChannelSession session, int ops) {
+        SelectionKey key = session.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | ops);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            acceptClientConnection();
+            return;
+        }
+        ChannelSession session = (ChannelSession) key.attachment();
+        try {
+            if (key.isReadable() && !session.readFromChannel()) {
+                session.close();
+                return;
+            }
+            if (key.isValid() && key.isWritable() && session.writeToChannel()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (session.hasPendingWrites()) {
+                    requestWrite(session);
+                }
+            }
+        } catch (EOFException e) {
+            logger.info(session + " closed the connection inside a frame");
+            session.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Closing " + session + " after I/O error", e);
+            session.close();
+        }
+    }
+
+    private void acceptClientConnection() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                ChannelSession session;
+                try {
+                    channel.configureBlocking(false);
+                    connectionManager.getSocketSettings().applyTo(channel);
+                    session = new ChannelSession(channel, this, connectionManager);
+                    channel.register(selector, SelectionKey.OP_READ, session);
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(channel);
+                    throw e;
+                }
+                logger.info("Client connected from: " + session.getRemoteAddress());
+                connectionManager.sessionOpened(session);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Problem accepting a client connection", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (loopThread != null) {
+                selector.wakeup();
+                loopThread.join();
+            }
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChannelSession session) {
+                        session.close();
+                    }
+                }
+                selector.close();
+            }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Problem with closing the server channel", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not close the connection", e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.messengerServer;
+
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.metrics.MetricsPublisher;
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.SocketSettings;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Everything the server is started with. Options are read from {@code --name=value} arguments
+ * and, if {@code --config=FILE} names one, from a properties file using the same names, with the
+ * arguments taking precedence:
+ * <ul>
+ *     <li>{@code port}: where the server listens, 1234 by default;</li>
+ *     <li>{@code mode}: {@code selector}, {@code virtual_threads} or {@code platform_threads};</li>
+ *     <li>{@code overflow}: {@code drop_oldest}, {@code disconnect} or {@code backpressure}, what
+ *     happens to slow clients;</li>
+ *     <li>{@code queue-capacity}: the size of their outbound queues;</li>
+ *     <li>{@code file-write}: {@code mapped} to write large received files through memory
+ *     mappings;</li>
+ *     <li>{@code max-file-size}: the largest file in bytes a client may send, 1 GB by default;
+ *     a file is also refused when the disk does not have room for it;</li>
+ *     <li>{@code message-log}: the directory of the message log, {@code message-log} by
+ *     default;</li>
+ *     <li>{@code message-log-segments}: how many 64 MB segments of the log are kept, 16 by
+ *     default; clients that were away longer only get the messages still kept;</li>
+ *     <li>{@code tcp-nodelay}, {@code send-buffer} and {@code receive-buffer}: the socket options
+ *     of client connections;</li>
+ *     <li>{@code heartbeat-interval} and {@code idle-timeout}: how long in milliseconds a client
+ *     may stay quiet before it is pinged and before it is disconnected;</li>
+ *     <li>{@code metrics-port}: a loopback port to serve the metrics on over HTTP, at
+ *     {@code /metrics}; they are always available over JMX.</li>
+ * </ul>
+ * An unknown name is an error, so a misspelt option does not go unnoticed.
+ */
+public record ServerConfig(int port, ServerMode mode, OverflowPolicy overflowPolicy, int outboundQueueCapacity,
+                           FileWriteMode fileWriteMode, long maxFileSize, Path messageLogDirectory,
+                           int messageLogSegments, SocketSettings socketSettings, HeartbeatSettings heartbeatSettings,
+                           int metricsPort) {
+    public static final int DEFAULT_PORT = 1234;
+    public static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 1024;
+    public static final Path DEFAULT_MESSAGE_LOG_DIRECTORY = Path.of("message-log");
+    public static final ServerConfig DEFAULT = new ServerConfig(DEFAULT_PORT, ServerMode.SELECTOR,
+            OverflowPolicy.DISCONNECT, DEFAULT_OUTBOUND_QUEUE_CAPACITY, FileWriteMode.CHANNEL,
+            FileReceiver.DEFAULT_MAX_FILE_SIZE, DEFAULT_MESSAGE_LOG_DIRECTORY, MessageLog.DEFAULT_MAX_SEGMENTS,
+            SocketSettings.DEFAULT, HeartbeatSettings.DEFAULT, MetricsPublisher.NO_HTTP);
+    private static final String CONFIG_FILE_OPTION = "config";
+    private static final Set<String> OPTIONS = Set.of("port", "mode", "overflow", "queue-capacity", "file-write",
+            "max-file-size", "message-log", "message-log-segments", "tcp-nodelay", "send-buffer", "receive-buffer",
+            "heartbeat-interval", "idle-timeout", "metrics-port");
+
+    /**
+     * Reads {@code --name=value} arguments, as given to a main method.
+     */
+    public static ServerConfig fromArguments(String... arguments) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String argument : arguments) {
+            int equals = argument.indexOf('=');
+            if (!argument.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + argument);
+            }
+            options.put(argument.substring(2, equals), argument.substring(equals + 1));
+        }
+        return fromOptions(options);
+    }
+
+    /**
+     * Reads options by name, first loading the file the {@code config} option names, if any.
+     */
+    public static ServerConfig fromOptions(Map<String, String> options) throws IOException {
+        Map<String, String> merged = new HashMap<>();
+        String configFile = options.get(CONFIG_FILE_OPTION);
+        if (configFile != null) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(Path.of(configFile))) {
+                properties.load(reader);
+            }
+            properties.stringPropertyNames().forEach(name -> merged.put(name, properties.getProperty(name).trim()));
+        }
+        merged.putAll(options);
+        merged.remove(CONFIG_FILE_OPTION);
+        for (String name : merged.keySet()) {
+            if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown server option: " + name);
+            }
+        }
+        String port = merged.get("port");
+        String queueCapacity = merged.get("queue-capacity");
+        String maxFileSize = merged.get("max-file-size");
+        String messageLog = merged.get("message-log");
+        String messageLogSegments = merged.get("message-log-segments");
+        String metricsPort = merged.get("metrics-port");
+        return new ServerConfig(
+                port == null ? DEFAULT_PORT : Integer.parseInt(port.trim()),
+                ServerMode.parse(merged.get("mode")),
+                OverflowPolicy.parse(merged.get("overflow")),
+                queueCapacity == null ? DEFAULT_OUTBOUND_QUEUE_CAPACITY : Integer.parseInt(queueCapacity.trim()),
+                FileWriteMode.parse(merged.get("file-write")),
+                maxFileSize == null ? FileReceiver.DEFAULT_MAX_FILE_SIZE : Long.parseLong(maxFileSize.trim()),
+                messageLog == null ? DEFAULT_MESSAGE_LOG_DIRECTORY : Path.of(messageLog),
+                messageLogSegments == null ? MessageLog.DEFAULT_MAX_SEGMENTS : Integer.parseInt(messageLogSegments.trim()),
+                SocketSettings.parse(merged.get("tcp-nodelay"), merged.get("send-buffer"), merged.get("receive-buffer")),
+                HeartbeatSettings.parse(merged.get("heartbeat-interval"), merged.get("idle-timeout")),
+                metricsPort == null ? MetricsPublisher.NO_HTTP : Integer.parseInt(metricsPort.trim()));
+    }
+}
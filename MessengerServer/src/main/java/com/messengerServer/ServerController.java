@@ -1,25 +1,28 @@
 package com.messengerServer;
 
-import javafx.application.Platform;
+import com.messengerCommon.ui.ChatMessage;
+import com.messengerCommon.ui.MessageDisplayService;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
-import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
-import javafx.scene.layout.VBox;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * The ServerController class is responsible for handling the server-side functionality
- * of the messenger application. It initializes the server, handles incoming and outgoing
- * messages, and deals with file transfer operations.
+ * of the messenger application. It displays the traffic of the running server, sends
+ * messages and files to every connected client, and saves the files clients send. Sending
+ * only hands the work to the {@link ConnectionManager}'s broadcast thread and reports back
+ * through a callback, so the FX thread never waits for the network or the disk.
  */
-public class ServerController implements Initializable {
+public class ServerController implements Initializable, SessionListener {
 
     @FXML
     private Button button_send_file;
@@ -28,30 +31,23 @@ public class ServerController implements Initializable {
     @FXML
     private TextField tf_message;
     @FXML
-    private VBox vbox_messages;
-    @FXML
-    private ScrollPane sp_main;
+    private ListView<ChatMessage> lv_messages;
     private MessageDisplayService messageDisplayService;
-    private NetworkService networkService;
-    private ConnectionManager connectionManager;
+    private final ConnectionManager connectionManager;
     private FileService fileService;
     private static final Logger logger = Logger.getLogger(ServerController.class.getName());
 
+    public ServerController(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        connectionManager = new ConnectionManager();
-        try {
-            connectionManager.initializeServer();
-            networkService = connectionManager.getNetworkService();
-            messageDisplayService = new MessageDisplayService(vbox_messages);
-            vbox_messages.heightProperty().addListener((observableValue, number, t1) -> sp_main.setVvalue((Double) t1));
-            button_send.setOnAction(this::handleSendMessage);
-            button_send_file.setOnAction(this::handleSendFile);
-            this.fileService = new FileService();
-            receiveMessageFromClient();
-        } catch (IOException e) {
-            handleServerError("Error creating server", e);
-        }
+        messageDisplayService = new MessageDisplayService(lv_messages);
+        button_send.setOnAction(this::handleSendMessage);
+        button_send_file.setOnAction(this::handleSendFile);
+        this.fileService = new FileService();
+        connectionManager.addSessionListener(this);
     }
 
     private void handleSendMessage(ActionEvent actionEvent) {
@@ -75,68 +71,46 @@ public class ServerController implements Initializable {
     }
 
     private void sendMessageToClient(String messageToSend) {
-        try {
-            networkService.sendMessage(messageToSend);
-            tf_message.clear();
-        } catch (IOException e) {
-            handleServerError("Error sending message to the client", e);
-        }
+        connectionManager.broadcastMessage(messageToSend).exceptionally(error -> {
+            logger.log(Level.SEVERE, "Error sending message to the clients", error);
+            return null;
+        });
+        tf_message.clear();
     }
 
     private void sendFileToClient(File fileToSend) {
-        try {
-            byte[] fileNameBytes = fileToSend.getName().getBytes();
-            byte[] fileContentBytes = fileService.readFileContent(fileToSend);
-
-            sendMessageToClient("FILE:");
-            networkService.sendFileMetadata(fileNameBytes, fileContentBytes);
-            networkService.sendFileContent(fileContentBytes);
+        connectionManager.broadcastFile(fileToSend.getName(), fileToSend.toPath()).whenComplete((delivered, error) -> {
+            if (error != null) {
+                logger.log(Level.SEVERE, "Error sending file to the clients", error);
+            } else {
+                logger.info("Sent " + fileToSend.getName() + " to " + delivered + " clients");
+                messageDisplayService.addMessageToDisplay(fileToSend.getName(), true);
+            }
+        });
+    }
 
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(fileToSend.getName(), true));
-        } catch (IOException e) {
-            handleServerError("Error sending file to the client", e);
-        }
+    @Override
+    public void onConnected(ClientSession session) {
+        logger.info("Client connected: " + session);
     }
 
-    private void receiveMessageFromClient() {
-        new Thread(() -> {
-            try {
-                while (true) {
-                    if (connectionManager.isConnected()) {
-                        String messageFromClient = networkService.readMessage();
-                        processReceivedMessage(messageFromClient);
-                    }
-                }
-            } catch (SocketException e) {
-                logger.log(Level.SEVERE, "Problem with socket", e);
-            } catch (IOException e) {
-                logger.log(Level.SEVERE,"Input/output device error", e);
-            }
-        }).start();
+    @Override
+    public void onMessage(ClientSession session, String message) {
+        processReceivedMessage(message);
     }
 
-    private void processReceivedMessage(String message) throws IOException {
-        if (message.equals("FILE:")) {
-            receiveAndSaveFile();
-        } else {
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(message, false));
-        }
+    @Override
+    public void onFile(ClientSession session, String fileName, Path file) {
+        logger.info("Saved " + file.toAbsolutePath() + " from " + session);
+        messageDisplayService.addMessageToDisplay(fileName, false);
     }
 
-    private void receiveAndSaveFile() {
-        try {
-            String fileName = networkService.readFileNameFromClient();
-            byte[] fileContent = networkService.readFileContentFromClient();
-            fileService.saveFile(fileName, fileContent);
-            Platform.runLater(() -> messageDisplayService.addMessageToDisplay(fileName, false));
-        } catch (IOException e) {
-            handleServerError("Error receiving and saving file from client", e);
-        }
+    @Override
+    public void onDisconnected(ClientSession session) {
+        logger.info("Client left: " + session);
     }
 
-    private void handleServerError(String errorMessage, Exception exception) {
-        System.out.println(errorMessage);
-        logger.log(Level.SEVERE, errorMessage, exception);
-        connectionManager.closeConnection();
+    private void processReceivedMessage(String message) {
+        messageDisplayService.addMessageToDisplay(message, false);
     }
-}
\ No newline at end of file
+}
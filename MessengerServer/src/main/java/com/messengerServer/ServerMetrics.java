@@ -0,0 +1,46 @@
+package com.messengerServer;
+
+import com.messengerCommon.metrics.LatencyHistogram;
+import com.messengerCommon.metrics.MetricsRegistry;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server counts and measures, in the {@link MetricsRegistry} the
+ * {@link ConnectionManager} publishes. The counters and latencies are updated by the session
+ * threads as they go; the gauges are read from the open sessions, and only when the metrics are.
+ */
+final class ServerMetrics {
+    final MetricsRegistry registry = new MetricsRegistry();
+    final LongAdder messagesReceived = registry.counter("messenger_server_messages_received_total",
+            "Text messages received from clients");
+    final LongAdder messagesSent = registry.counter("messenger_server_messages_sent_total",
+            "Text messages queued for clients, whether relayed, replayed from the log or sent by the server");
+    final LongAdder bytesReceived = registry.counter("messenger_server_received_bytes_total",
+            "Bytes of the frames received from clients");
+    final LongAdder bytesSent = registry.counter("messenger_server_sent_bytes_total",
+            "Bytes written to clients; file chunks count their content only");
+    final LatencyHistogram relayLatency = registry.histogram("messenger_server_relay_latency_seconds",
+            "From a message being read to it being logged and queued for the room");
+    final LatencyHistogram queueLatency = registry.histogram("messenger_server_queue_latency_seconds",
+            "How long messages and acknowledgements wait in an outbound queue before the session's writer takes them");
+
+    ServerMetrics(Collection<ClientSession> sessions) {
+        registry.gauge("messenger_server_connections", "Open client sessions", sessions::size);
+        registry.gauge("messenger_server_file_transfers", "Files being sent to or received from clients",
+                () -> sessions.stream().mapToLong(ClientSession::getFileTransferCount).sum());
+        registry.gauge("messenger_server_outbound_queue_depth_max", "Messages waiting in the fullest outbound queue",
+                () -> sessions.stream().mapToLong(ClientSession::getOutboundQueueDepth).max().orElse(0));
+        registry.gauges("messenger_server_outbound_queue_depth", "Messages waiting to be written, by session",
+                "session", () -> {
+                    Map<String, Long> depths = new TreeMap<>(Comparator.comparingLong(Long::parseLong));
+                    sessions.forEach(session -> depths.put(String.valueOf(session.getId()),
+                            (long) session.getOutboundQueueDepth()));
+                    return depths;
+                });
+    }
+}
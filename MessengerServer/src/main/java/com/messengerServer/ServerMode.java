@@ -0,0 +1,27 @@
+package com.messengerServer;
+
+import java.util.Arrays;
+
+/**
+ * How the server drives client connections.
+ */
+public enum ServerMode {
+    /** One selector thread multiplexes every non-blocking channel. */
+    SELECTOR,
+    /** Every connection runs a blocking read loop on its own virtual thread. */
+    VIRTUAL_THREADS,
+    /** Every connection runs a blocking read loop on its own platform thread. */
+    PLATFORM_THREADS;
+
+    public static ServerMode parse(String value) {
+        if (value == null || value.isBlank()) {
+            return SELECTOR;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown server mode " + value + ", expected one of "
+                    + Arrays.toString(values()).toLowerCase());
+        }
+    }
+}
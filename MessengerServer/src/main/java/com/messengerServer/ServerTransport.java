@@ -0,0 +1,17 @@
+package com.messengerServer;
+
+import java.io.IOException;
+
+/**
+ * The part of the server that accepts connections and drives their I/O.
+ */
+public interface ServerTransport {
+
+    void start() throws IOException;
+
+    /**
+     * Stops accepting connections, closes every session this transport serves and waits until
+     * all of them have finished.
+     */
+    void close();
+}
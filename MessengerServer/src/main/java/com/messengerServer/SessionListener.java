@@ -0,0 +1,21 @@
+package com.messengerServer;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the lifecycle and traffic events of client sessions. Callbacks for one session are
+ * always delivered in order on the same worker thread, never on the selector thread.
+ */
+public interface SessionListener {
+
+    void onConnected(ClientSession session);
+
+    void onMessage(ClientSession session, String message);
+
+    /**
+     * A file from the client has been saved completely.
+     */
+    void onFile(ClientSession session, String fileName, Path file);
+
+    void onDisconnected(ClientSession session);
+}
@@ -0,0 +1,16 @@
+package com.messengerServer;
+
+/**
+ * Where a {@link ClientSession} is in its life. Sessions only move down this list, and
+ * {@link #CLOSED} can be reached from any other state.
+ */
+public enum SessionState {
+    /** Connected; only HELLO and control frames are accepted until the client introduces itself. */
+    AWAITING_HELLO,
+    /** Introduced; being sent the messages it missed, and not in any room yet. */
+    CATCHING_UP,
+    /** In its room, receiving traffic as it happens. */
+    LIVE,
+    /** Disconnected, by either side; nothing is read or sent any more. */
+    CLOSED
+}
@@ -0,0 +1,113 @@
+package com.messengerServer;
+
+import com.messengerCommon.file.FileTransfer;
+import com.messengerCommon.transport.NetworkService;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A session served by the {@link ThreadPerConnectionServer}: a blocking socket with a read loop
+ * and a writer loop, each running on a thread of its own. The writer drains the outbound queue
+ * in {@link WriteBatch}es, each one gathering write to the blocking channel, and sends file
+ * chunks from the file straight to the same channel.
+ */
+public class SocketSession extends ClientSession implements Runnable {
+    private static final Logger logger = Logger.getLogger(SocketSession.class.getName());
+
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final NetworkService networkService;
+    private final WriteBatch batch;
+
+    public SocketSession(SocketChannel channel, ConnectionManager connectionManager) throws IOException {
+        super(connectionManager, true);
+        this.channel = channel;
+        this.socket = channel.socket();
+        // only reads: everything this session sends goes through drainOutbound
+        this.networkService = new NetworkService(socket.getOutputStream(),
+                new BufferedInputStream(socket.getInputStream()));
+        this.batch = new WriteBatch(id, metrics.bytesSent);
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    protected void onEnqueued() {
+        // the writer loop is already waiting on the queue
+    }
+
+    /**
+     * The writer loop. Returns once the session is closed.
+     */
+    public void drainOutbound() {
+        try {
+            while (outboundQueue.awaitPending()) {
+                batch.fill(outboundQueue);
+                if (batch.isEmpty()) {
+                    writeFileFrame(outboundQueue.currentTransfer());
+                }
+                while (!batch.isEmpty()) {
+                    // a blocking gathering write may still stop short of the end
+                    batch.writeTo(channel);
+                }
+            }
+        } catch (IOException e) {
+            if (isOpen()) {
+                logger.log(Level.WARNING, "Closing " + this + " after write error", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void writeFileFrame(FileTransfer transfer) throws IOException {
+        if (transfer == null) {
+            return;
+        }
+        long sent = transfer.getBytesSent();
+        transfer.writeFrameTo(channel);
+        metrics.bytesSent.add(transfer.getBytesSent() - sent);
+        outboundQueue.transferFrameWritten(transfer);
+    }
+
+    /**
+     * The read loop. Returns once the peer disconnects or the session is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (isOpen() && networkService.readFrame(this)) {
+                // each frame is handled by onFrame
+            }
+        } catch (EOFException e) {
+            logger.info(this + " closed the connection inside a frame");
+        } catch (IOException e) {
+            if (isOpen()) {
+                logger.log(Level.WARNING, "Closing " + this + " after I/O error", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    protected void closeTransport() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // the socket is being discarded either way
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.messengerServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blocking accept loop that gives every connection a reader and a writer thread from the
+ * supplied factory. With a virtual thread factory an idle connection costs two small heap
+ * stacks instead of two platform threads.
+ * <p>
+ * All connection threads belong to one executor, so {@link #close()} can cancel every session
+ * and then wait for each read loop to return before the server counts as stopped.
+ * <p>
+ * Connections are accepted as blocking channels rather than plain sockets, so that file content
+ * can be sent with {@code transferTo}.
+ */
+public class ThreadPerConnectionServer implements ServerTransport {
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final Logger logger = Logger.getLogger(ThreadPerConnectionServer.class.getName());
+
+    private final int port;
+    private final ConnectionManager connectionManager;
+    private final ThreadFactory threadFactory;
+    private final Set<SocketSession> sessions = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private Thread acceptThread;
+
+    public ThreadPerConnectionServer(int port, ConnectionManager connectionManager, ThreadFactory threadFactory) {
+        this.port = port;
+        this.connectionManager = connectionManager;
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        connectionManager.getSocketSettings().applyTo(serverChannel);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        executor = Executors.newThreadPerTaskExecutor(threadFactory);
+        acceptThread = new Thread(this::acceptClientConnections, "accept-loop");
+        acceptThread.start();
+    }
+
+    private void acceptClientConnections() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                SocketSession session;
+                try {
+                    connectionManager.getSocketSettings().applyTo(channel);
+                    session = new SocketSession(channel, connectionManager);
+                } catch (IOException | RuntimeException e) {
+                    // no session owns the connection yet
+                    closeQuietly(channel);
+                    throw e;
+                }
+                logger.info("Client connected from: " + session.getRemoteAddress());
+                sessions.add(session);
+                connectionManager.sessionOpened(session);
+                executor.execute(session::drainOutbound);
+                executor.execute(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        sessions.remove(session);
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                logger.fine("Server channel closed");
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    logger.log(Level.WARNING, "Problem accepting a client connection", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (acceptThread != null) {
+                acceptThread.join();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Problem with closing the server channel", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sessions.forEach(SocketSession::close);
+        if (executor != null) {
+            executor.close();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not close the connection", e);
+        }
+    }
+}
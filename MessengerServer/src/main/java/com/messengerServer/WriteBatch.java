@@ -0,0 +1,85 @@
+package com.messengerServer;
+
+import com.messengerCommon.jfr.MessageWriteEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages taken from an {@link OutboundQueue} to go out in one gathering write, so a burst of
+ * small frames costs one system call instead of one each. Holds up to {@value #MAX_FRAMES}
+ * frames and stops taking more once it reaches {@value #MAX_BYTES} bytes. A batch the socket
+ * only took part of keeps the rest, which its session finishes before anything else. Not thread
+ * safe: belongs to the session's writer.
+ * <p>
+ * The frames stay the heap buffers they were queued as rather than being copied into a direct
+ * buffer of the session's own. The channel already copies heap buffers into a temporary direct
+ * buffer cached by the writing thread, so a session buffer would only move that copy, while
+ * holding up to {@value #MAX_BYTES} bytes of direct memory for every connection, idle or not.
+ * A broadcast frame is shared by all its recipients and is not copied per session either.
+ * <p>
+ * Every write is a {@link MessageWriteEvent} for Flight Recorder.
+ */
+final class WriteBatch {
+    private static final int MAX_FRAMES = 64;
+    private static final int MAX_BYTES = 256 * 1024;
+
+    private final ByteBuffer[] frames = new ByteBuffer[MAX_FRAMES];
+    private final long sessionId;
+    private final LongAdder bytesWritten;
+    private int offset;
+    private int count;
+
+    /**
+     * @param bytesWritten counts every byte the batches write.
+     */
+    WriteBatch(long sessionId, LongAdder bytesWritten) {
+        this.sessionId = sessionId;
+        this.bytesWritten = bytesWritten;
+    }
+
+    boolean isEmpty() {
+        return offset == count;
+    }
+
+    /**
+     * Takes queued messages until the batch is full or the queue has no more. Only called once
+     * the previous batch has been written.
+     */
+    void fill(OutboundQueue queue) {
+        offset = 0;
+        count = 0;
+        int bytes = 0;
+        ByteBuffer frame;
+        while (count < MAX_FRAMES && bytes < MAX_BYTES && (frame = queue.pollMessage()) != null) {
+            frames[count++] = frame;
+            bytes += frame.remaining();
+        }
+    }
+
+    /**
+     * Writes as much of the batch as the channel takes in one call.
+     *
+     * @return true once the whole batch has been written.
+     */
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        MessageWriteEvent event = new MessageWriteEvent();
+        event.begin();
+        long written = channel.write(frames, offset, count - offset);
+        bytesWritten.add(written);
+        int first = offset;
+        while (offset < count && !frames[offset].hasRemaining()) {
+            frames[offset++] = null;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sessionId = sessionId;
+            event.frames = offset - first;
+            event.bytes = written;
+            event.commit();
+        }
+        return isEmpty();
+    }
+}
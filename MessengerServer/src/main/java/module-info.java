@@ -2,6 +2,7 @@ module com.messangernbserver {
     requires javafx.controls;
     requires javafx.fxml;
     requires java.logging;
+    requires com.messangernbcommon;
 
 
     opens com.messengerServer to javafx.fxml;
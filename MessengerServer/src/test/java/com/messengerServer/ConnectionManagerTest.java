@@ -0,0 +1,159 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.FrameDecoder;
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.metrics.MetricsPublisher;
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.SocketSettings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionManagerTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int QUEUE_CAPACITY = 8;
+
+    @TempDir
+    Path directory;
+    private ConnectionManager connectionManager;
+
+    @BeforeEach
+    void start() throws IOException {
+        connectionManager = new ConnectionManager(new ServerConfig(0, ServerMode.SELECTOR, OverflowPolicy.DISCONNECT,
+                QUEUE_CAPACITY, FileWriteMode.CHANNEL, FileReceiver.DEFAULT_MAX_FILE_SIZE, directory,
+                MessageLog.DEFAULT_MAX_SEGMENTS, SocketSettings.DEFAULT, HeartbeatSettings.DEFAULT,
+                MetricsPublisher.NO_HTTP));
+        connectionManager.initializeServer();
+    }
+
+    @AfterEach
+    void stop() {
+        connectionManager.closeConnection();
+    }
+
+    @Test
+    void acknowledgesAMessageOnceLoggedAndACopyAgain() throws Exception {
+        TestSession session = hello("client");
+        session.receive(Frames.message(1, "hello"));
+        assertEquals(1, Frames.readSequence(payload(session.nextFrame(FrameType.ACK))));
+        session.receive(Frames.message(1, "hello"));
+        assertEquals(1, Frames.readSequence(payload(session.nextFrame(FrameType.ACK))));
+        assertEquals(1, connectionManager.getMessageLog().nextId());
+    }
+
+    @Test
+    void acknowledgesPastAFullQueue() throws Exception {
+        TestSession session = hello("client");
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            assertTrue(session.deliver(Frames.message("unread " + i)));
+        }
+        session.receive(Frames.message(1, "hello"));
+        CountDownLatch durable = new CountDownLatch(1);
+        while (connectionManager.getMessageLog().nextId() == 0) {
+            Thread.sleep(5);
+        }
+        connectionManager.getMessageLog().whenDurable(0, durable::countDown);
+        assertTrue(durable.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // the acknowledgement is queued by the session's worker soon after
+        Thread.sleep(100);
+        assertTrue(session.isOpen());
+        assertEquals(QUEUE_CAPACITY, session.getOutboundQueueDepth());
+        assertEquals(1, Frames.readSequence(payload(session.nextFrame(FrameType.ACK))));
+    }
+
+    @Test
+    void neitherAcknowledgesNorRemembersAMessageThatCouldNotBeLogged() throws Exception {
+        TestSession session = hello("client");
+        connectionManager.getMessageLog().close();
+        session.receive(Frames.message(1, "lost"));
+        // closed so the client reconnects and sends the message again
+        assertTrue(session.closed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        TestSession reconnected = hello("client");
+        assertNull(reconnected.nextFrame(FrameType.ACK, 200));
+    }
+
+    private TestSession hello(String clientId) throws IOException {
+        TestSession session = new TestSession(connectionManager);
+        session.receive(Frames.hello(0, clientId));
+        return session;
+    }
+
+    private static ByteBuffer payload(ByteBuffer frame) throws IOException {
+        ByteBuffer[] payload = new ByteBuffer[1];
+        new FrameDecoder().decode(frame, (type, flags, streamId, content) -> payload[0] = content.slice());
+        return payload[0];
+    }
+
+    /**
+     * A session without a connection: frames are handed to it directly, and what it queues is
+     * taken from its outbound queue.
+     */
+    static class TestSession extends ClientSession {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        TestSession(ConnectionManager connectionManager) {
+            super(connectionManager, true);
+        }
+
+        void receive(ByteBuffer frame) throws IOException {
+            new FrameDecoder().decode(frame, this);
+        }
+
+        ByteBuffer nextFrame(FrameType type) throws InterruptedException, ProtocolException {
+            ByteBuffer frame = nextFrame(type, TIMEOUT_MILLIS);
+            if (frame == null) {
+                throw new AssertionError("No " + type + " was queued");
+            }
+            return frame;
+        }
+
+        /**
+         * @return the next queued frame of the given type, skipping the others, or null if none
+         * is queued in time.
+         */
+        ByteBuffer nextFrame(FrameType type, long timeoutMillis) throws InterruptedException, ProtocolException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (System.nanoTime() < deadline) {
+                ByteBuffer frame = outboundQueue.pollMessage();
+                if (frame == null) {
+                    Thread.sleep(5);
+                } else if (FrameType.fromId(frame.get(frame.position() + 1) & 0xFF) == type) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        }
+
+        @Override
+        protected void onEnqueued() {
+        }
+
+        @Override
+        protected void closeTransport() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.messengerServer;
+
+import com.messengerCommon.codec.FrameType;
+import com.messengerCommon.codec.Frames;
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileWriteMode;
+import com.messengerCommon.metrics.MetricsPublisher;
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.SocketSettings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdleReaperTest {
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(3);
+    /** A quarter of the interval, the reaper's tick. */
+    private static final long TICK = INTERVAL / 4;
+    private static final long POLL_MILLIS = 50;
+
+    @TempDir
+    Path directory;
+    private ConnectionManager connectionManager;
+    /** The reaper's clock, which only moves when a test moves it. */
+    private long now = TimeUnit.HOURS.toNanos(1);
+    private final long start = now;
+    private IdleReaper reaper;
+
+    @BeforeEach
+    void start() throws IOException {
+        connectionManager = new ConnectionManager(new ServerConfig(0, ServerMode.SELECTOR, OverflowPolicy.DISCONNECT,
+                8, FileWriteMode.CHANNEL, FileReceiver.DEFAULT_MAX_FILE_SIZE, directory,
+                MessageLog.DEFAULT_MAX_SEGMENTS, SocketSettings.DEFAULT, HeartbeatSettings.DEFAULT,
+                MetricsPublisher.NO_HTTP));
+        connectionManager.initializeServer();
+        reaper = new IdleReaper(new HeartbeatSettings(TimeUnit.NANOSECONDS.toMillis(INTERVAL),
+                TimeUnit.NANOSECONDS.toMillis(TIMEOUT)), () -> now);
+    }
+
+    @AfterEach
+    void stop() {
+        connectionManager.closeConnection();
+    }
+
+    @Test
+    void pingsASilentSessionEveryIntervalAndClosesItAtTheTimeout() throws Exception {
+        ClockedSession session = live();
+        advanceTo(start + INTERVAL - TICK);
+        assertNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+        advanceTo(start + INTERVAL);
+        assertNotNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+        advanceTo(start + 2 * INTERVAL);
+        assertNotNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+        advanceTo(start + TIMEOUT - TICK);
+        assertTrue(session.isOpen());
+        advanceTo(start + TIMEOUT);
+        assertFalse(session.isOpen());
+    }
+
+    @Test
+    void checksAgainOneIntervalAfterTheLastRead() throws Exception {
+        ClockedSession session = live();
+        advanceTo(start + INTERVAL / 2);
+        session.lastReadNanos = now;
+        // due, but heard from since it was scheduled: moved on instead of pinged
+        advanceTo(start + INTERVAL);
+        assertNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+        advanceTo(session.lastReadNanos + INTERVAL);
+        assertNotNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+        // a session that keeps talking is never closed
+        for (long time = now + TICK; time < start + 3 * TIMEOUT; time += TICK) {
+            session.lastReadNanos = time;
+            advanceTo(time);
+        }
+        assertTrue(session.isOpen());
+        assertNull(session.nextFrame(FrameType.PING, POLL_MILLIS));
+    }
+
+    @Test
+    void closesASessionThatNeverSaysHello() throws Exception {
+        ClockedSession session = new ClockedSession(connectionManager, start);
+        reaper.add(session);
+        reaper.advance();
+        // reading frames other than hello does not keep it open
+        for (long time = start + TICK; time < start + TIMEOUT; time += TICK) {
+            session.lastReadNanos = time;
+            advanceTo(time);
+        }
+        assertTrue(session.isOpen());
+        advanceTo(start + TIMEOUT);
+        assertFalse(session.isOpen());
+    }
+
+    @Test
+    void catchesUpOnTicksItMissed() throws Exception {
+        ClockedSession session = live();
+        advanceTo(start + 10 * TIMEOUT);
+        assertFalse(session.isOpen());
+    }
+
+    /**
+     * @return a session that said hello when the reaper started and has been silent since.
+     */
+    private ClockedSession live() throws IOException {
+        ClockedSession session = new ClockedSession(connectionManager, start);
+        session.receive(Frames.hello(0, "client"));
+        reaper.add(session);
+        reaper.advance();
+        return session;
+    }
+
+    private void advanceTo(long time) {
+        now = time;
+        reaper.advance();
+    }
+
+    /**
+     * A session whose open and read times are on the test's clock.
+     */
+    private static class ClockedSession extends ConnectionManagerTest.TestSession {
+        private final long openedNanos;
+        volatile long lastReadNanos;
+
+        ClockedSession(ConnectionManager connectionManager, long openedNanos) {
+            super(connectionManager);
+            this.openedNanos = openedNanos;
+            this.lastReadNanos = openedNanos;
+        }
+
+        @Override
+        long getOpenedNanos() {
+            return openedNanos;
+        }
+
+        @Override
+        long getLastReadNanos() {
+            return lastReadNanos;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.messengerServer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    /** Room for seven of the messages these tests append. */
+    private static final int SEGMENT_SIZE = 256;
+    private static final long COMMIT_INTERVAL_MILLIS = 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rollsOverToNewSegmentsAndReadsAcrossThem() throws IOException {
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            append(log, 40);
+            assertTrue(segmentFiles().size() >= 5);
+            assertEquals(LongStream.range(0, 40).boxed().toList(), ids(log.read(0, 100)));
+            List<MessageLog.Entry> page = log.read(13, 5);
+            assertEquals(List.of(13L, 14L, 15L, 16L, 17L), ids(page));
+            assertEquals(new MessageLog.Entry(13, "client", 13, message(13)), page.get(0));
+        }
+    }
+
+    @Test
+    void recoversEveryMessageWhenReopened() throws IOException {
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            append(log, 40);
+        }
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            assertEquals(40, log.nextId());
+            assertEquals(LongStream.range(0, 40).boxed().toList(), ids(log.read(0, 100)));
+            assertEquals(40, log.append("client", 40, message(40)));
+        }
+    }
+
+    @Test
+    void dropsTornRecordAtTheEndOfTheNewestSegment() throws IOException {
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            append(log, 20);
+        }
+        List<Path> files = segmentFiles();
+        Path newest = files.get(files.size() - 1);
+        damageRecord(newest, recordCount(newest) - 1);
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            assertEquals(19, log.nextId());
+            assertEquals(19, log.append("client", 99, "after the crash"));
+            assertEquals("after the crash", log.read(19, 1).get(0).message());
+        }
+    }
+
+    @Test
+    void skipsMessagesLostFromAnOlderSegment() throws IOException {
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            append(log, 40);
+        }
+        List<Path> files = segmentFiles();
+        damageRecord(files.get(0), 2);
+        long secondBase = LogSegment.baseIdOf(files.get(1));
+        try (MessageLog log = open(MessageLog.DEFAULT_MAX_SEGMENTS)) {
+            assertEquals(40, log.nextId());
+            List<Long> expected = LongStream.concat(LongStream.range(0, 2), LongStream.range(secondBase, 40))
+                    .boxed().toList();
+            assertEquals(expected, ids(log.read(0, 100)));
+            assertEquals(List.of(secondBase), ids(log.read(2, 1)));
+            assertTrue(log.read(40, 1).isEmpty());
+        }
+    }
+
+    @Test
+    void deletesTheOldestSegmentsBeyondTheLimit() throws IOException {
+        long firstKept;
+        try (MessageLog log = open(3)) {
+            append(log, 100);
+            assertEquals(3, segmentFiles().size());
+            firstKept = LogSegment.baseIdOf(segmentFiles().get(0));
+            assertTrue(firstKept > 0);
+            List<MessageLog.Entry> entries = log.read(0, 1000);
+            assertEquals(firstKept, entries.get(0).id());
+            assertEquals(99, entries.get(entries.size() - 1).id());
+        }
+        try (MessageLog log = open(2)) {
+            assertEquals(2, segmentFiles().size());
+            assertEquals(100, log.nextId());
+            assertTrue(log.read(0, 1).get(0).id() > firstKept);
+        }
+    }
+
+    @Test
+    void runsDurableActionsOnceTheirMessageIsCommitted() throws Exception {
+        try (MessageLog log = new MessageLog(directory, SEGMENT_SIZE, MessageLog.DEFAULT_MAX_SEGMENTS,
+                TimeUnit.MINUTES.toMillis(1))) {
+            append(log, 20);
+            CompletableFuture<Long> durable = new CompletableFuture<>();
+            log.whenDurable(19, () -> durable.complete(19L));
+            // committed right away, not after the minute the log would wait for more messages
+            assertEquals(19, durable.get(5, TimeUnit.SECONDS));
+            CompletableFuture<Long> again = new CompletableFuture<>();
+            log.whenDurable(3, () -> again.complete(3L));
+            assertTrue(again.isDone());
+        }
+    }
+
+    private MessageLog open(int maxSegments) throws IOException {
+        return new MessageLog(directory, SEGMENT_SIZE, maxSegments, COMMIT_INTERVAL_MILLIS);
+    }
+
+    private static void append(MessageLog log, int count) throws IOException {
+        for (long id = log.nextId(), end = id + count; id < end; id++) {
+            assertEquals(id, log.append("client", id, message(id)));
+        }
+    }
+
+    private static String message(long id) {
+        return String.format("message %03d", id);
+    }
+
+    private static List<Long> ids(List<MessageLog.Entry> entries) {
+        return entries.stream().map(MessageLog.Entry::id).toList();
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> LogSegment.baseIdOf(file) >= 0).sorted().toList();
+        }
+    }
+
+    private static int recordCount(Path segment) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int count = 0;
+        for (int length; content.remaining() >= LogSegment.RECORD_HEADER_LENGTH
+                && (length = content.getInt(content.position())) > 0; count++) {
+            content.position(content.position() + LogSegment.RECORD_HEADER_LENGTH + length);
+        }
+        return count;
+    }
+
+    /**
+     * Flips a byte in the payload of a record, as a write torn by a crash would leave it.
+     */
+    private static void damageRecord(Path segment, int record) throws IOException {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(segment));
+        for (int i = 0; i < record; i++) {
+            content.position(content.position() + LogSegment.RECORD_HEADER_LENGTH + content.getInt(content.position()));
+        }
+        int position = content.position() + LogSegment.RECORD_HEADER_LENGTH;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) ~content.get(position)}), position);
+        }
+    }
+}
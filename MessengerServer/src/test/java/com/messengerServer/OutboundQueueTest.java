@@ -0,0 +1,204 @@
+package com.messengerServer;
+
+import com.messengerCommon.file.FileReceiver;
+import com.messengerCommon.file.FileTransfer;
+import com.messengerCommon.metrics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    private static final int CAPACITY = 4;
+    private static final long BACKPRESSURE_TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    Path directory;
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    @Test
+    void dropOldestEvictsTheOldestWaitingMessage() throws InterruptedException {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            assertTrue(queue.offer(message(i)));
+        }
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(List.of(2, 3, 4, 5), drain(queue));
+        assertEquals(CAPACITY, waitTimes.getCount());
+    }
+
+    @Test
+    void dropOldestNeverDiscardsAMessageTheWriterHasTaken() throws InterruptedException {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(message(i));
+        }
+        ByteBuffer writing = queue.pollMessage();
+        writing.position(2);
+        for (int i = CAPACITY; i < CAPACITY + 2; i++) {
+            queue.offer(message(i));
+        }
+        // the message being written keeps its content and position; the next oldest went instead
+        assertEquals(2, writing.position());
+        assertEquals(0, writing.getInt(0));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(List.of(2, 3, 4, 5), drain(queue));
+    }
+
+    @Test
+    void disconnectRefusesAMessageWhenFull() throws InterruptedException {
+        OutboundQueue queue = queue(OverflowPolicy.DISCONNECT);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(queue.offer(message(i)));
+        }
+        assertFalse(queue.offer(message(CAPACITY)));
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(List.of(0, 1, 2, 3), drain(queue));
+    }
+
+    @Test
+    void backpressureWaitsForTheWriter() throws Exception {
+        OutboundQueue queue = queue(OverflowPolicy.BACKPRESSURE);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(message(i));
+        }
+        CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> offer(queue, message(CAPACITY)));
+        Thread.sleep(100);
+        assertFalse(offered.isDone());
+        assertEquals(0, queue.pollMessage().getInt(0));
+        assertTrue(offered.get(BACKPRESSURE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(List.of(1, 2, 3, 4), drain(queue));
+    }
+
+    @Test
+    void backpressureGivesUpAfterTheTimeout() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OverflowPolicy.BACKPRESSURE, 50, waitTimes);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(message(i));
+        }
+        long start = System.nanoTime();
+        assertFalse(queue.offer(message(CAPACITY)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(CAPACITY, queue.size());
+    }
+
+    @Test
+    void closingReleasesABlockedProducer() throws Exception {
+        OutboundQueue queue = queue(OverflowPolicy.BACKPRESSURE);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(message(i));
+        }
+        CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> offer(queue, message(CAPACITY)));
+        Thread.sleep(100);
+        queue.close();
+        assertFalse(offered.get(BACKPRESSURE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.awaitPending());
+    }
+
+    @Test
+    void controlFramesGoFirstAndNeverEvictOrWait() throws InterruptedException {
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            OutboundQueue queue = queue(policy);
+            for (int i = 0; i < CAPACITY; i++) {
+                queue.offer(message(i));
+            }
+            for (int i = 0; i < OutboundQueue.MAX_CONTROL_FRAMES; i++) {
+                assertTrue(queue.offerControl(message(100 + i)));
+            }
+            assertFalse(queue.offerControl(message(999)), policy.name());
+            assertEquals(0, queue.getDroppedCount());
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < OutboundQueue.MAX_CONTROL_FRAMES; i++) {
+                expected.add(100 + i);
+            }
+            expected.addAll(List.of(0, 1, 2, 3));
+            assertEquals(expected, drain(queue), policy.name());
+        }
+    }
+
+    @Test
+    void transfersTakeTurnsFrameByFrame() throws IOException {
+        OutboundQueue queue = queue(OverflowPolicy.DISCONNECT);
+        List<FileTransfer> transfers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            transfers.add(transfer(i + 1));
+            queue.offerTransfer(transfers.get(i));
+        }
+        List<Long> turns = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            FileTransfer current = queue.currentTransfer();
+            turns.add(current.getStreamId());
+            current.nextFrame();
+            queue.transferFrameWritten(current);
+        }
+        assertEquals(List.of(1L, 2L, 3L, 1L, 2L, 3L), turns);
+        assertSame(transfers.get(1), queue.findTransfer(2));
+        queue.close();
+        assertNull(queue.currentTransfer());
+    }
+
+    @Test
+    void onlyAsManyTransfersTakeTurnsAsAReceiverAccepts() throws IOException {
+        OutboundQueue queue = queue(OverflowPolicy.DISCONNECT);
+        int count = FileReceiver.MAX_INCOMING_FILES + 2;
+        for (int i = 1; i <= count; i++) {
+            queue.offerTransfer(transfer(i));
+        }
+        List<Long> started = new ArrayList<>();
+        for (int i = 0; i < 3 * count; i++) {
+            FileTransfer current = queue.currentTransfer();
+            if (!started.contains(current.getStreamId())) {
+                started.add(current.getStreamId());
+            }
+            // none of them finishes
+            queue.transferFrameWritten(current);
+        }
+        assertEquals(FileReceiver.MAX_INCOMING_FILES, started.size());
+        queue.close();
+    }
+
+    private OutboundQueue queue(OverflowPolicy policy) {
+        return new OutboundQueue(CAPACITY, policy, BACKPRESSURE_TIMEOUT_MILLIS, waitTimes);
+    }
+
+    private FileTransfer transfer(long streamId) throws IOException {
+        Path file = directory.resolve("file-" + streamId);
+        Files.write(file, new byte[100]);
+        return new FileTransfer(streamId, file.getFileName().toString(), file);
+    }
+
+    private static ByteBuffer message(int number) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, number);
+    }
+
+    private static boolean offer(OutboundQueue queue, ByteBuffer message) {
+        try {
+            return queue.offer(message);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Integer> drain(OutboundQueue queue) {
+        List<Integer> numbers = new ArrayList<>();
+        for (ByteBuffer message; (message = queue.pollMessage()) != null; ) {
+            numbers.add(message.getInt(0));
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,73 @@
+package com.messengerServer;
+
+import com.messengerCommon.transport.HeartbeatSettings;
+import com.messengerCommon.transport.SocketSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerConfigTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void defaultsWithoutOptions() throws IOException {
+        assertEquals(ServerConfig.DEFAULT, ServerConfig.fromArguments());
+    }
+
+    @Test
+    void argumentsOverrideTheConfigFile() throws IOException {
+        Path file = Files.writeString(directory.resolve("server.properties"), """
+                port = 2000
+                overflow = backpressure
+                queue-capacity = 16
+                heartbeat-interval = 1000
+                idle-timeout = 3000
+                """);
+        ServerConfig config = ServerConfig.fromArguments("--config=" + file, "--port=3000", "--tcp-nodelay=false");
+        assertEquals(3000, config.port());
+        assertEquals(OverflowPolicy.BACKPRESSURE, config.overflowPolicy());
+        assertEquals(16, config.outboundQueueCapacity());
+        assertEquals(new HeartbeatSettings(1000, 3000), config.heartbeatSettings());
+        assertEquals(new SocketSettings(false, SocketSettings.DEFAULT.sendBufferSize(),
+                SocketSettings.DEFAULT.receiveBufferSize()), config.socketSettings());
+        assertEquals(ServerConfig.DEFAULT.mode(), config.mode());
+        assertEquals(ServerConfig.DEFAULT.messageLogDirectory(), config.messageLogDirectory());
+    }
+
+    @Test
+    void rejectsUnknownOptions() throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArguments("--prot=2000"));
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArguments("port=2000"));
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArguments("--port"));
+        Path file = Files.writeString(directory.resolve("server.properties"), "overflw=drop_oldest\n");
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArguments("--config=" + file));
+    }
+
+    @Test
+    void rejectsBadValues() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.fromArguments("--overflow=sometimes"));
+        assertTrue(e.getMessage().contains("sometimes"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArguments("--mode=fibers"));
+        assertThrows(NumberFormatException.class, () -> ServerConfig.fromArguments("--queue-capacity=many"));
+        // the interval has to be shorter than the timeout
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.fromArguments("--heartbeat-interval=5000", "--idle-timeout=5000"));
+    }
+
+    @Test
+    void parsesOverflowPoliciesLeniently() {
+        assertEquals(OverflowPolicy.DISCONNECT, OverflowPolicy.parse(null));
+        assertEquals(OverflowPolicy.DISCONNECT, OverflowPolicy.parse(" "));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("drop-oldest"));
+        assertEquals(OverflowPolicy.BACKPRESSURE, OverflowPolicy.parse(" Backpressure "));
+    }
+}